@@ -0,0 +1,69 @@
+#! /usr/bin/env python
+
+"""Builds a Bloom filter over the folded words of a binary dictionary,
+so that most misspelled words can be rejected without walking the trie.
+
+File format (big endian):
+  magic 'GBLM', number of bits m (multiple of 64), number of hashes k,
+  then m/64 64-bit words; bit b is bit (b % 64) of word (b / 64).
+Probe i of a word sets bit ((h1 + i*h2) mod 2^32) mod m, where h1 is the
+FNV-1a hash of the folded word and h2 = mix(h1) | 1."""
+
+import sys
+import getopt
+import math
+import struct
+import time
+
+import trie
+import wordhash
+
+logfp = sys.stderr
+
+_MAGIC = 'GBLM'
+
+_default_bits = 10
+
+def writeBloom (t, fp, bitsPerWord = _default_bits):
+    startTime = time.time()
+    words = [w for w, f in t.words()]
+    numHashes = max(1, int(round(bitsPerWord * math.log(2))))
+    numBits = ((len(words) * bitsPerWord + 63) // 64) * 64
+    bits = [0] * (numBits // 64)
+    for w in words:
+        h1 = wordhash.fnv1a(w)
+        h2 = wordhash.mix(h1) | 1
+        for i in range(numHashes):
+            b = ((h1 + i * h2) & 0xFFFFFFFF) % numBits
+            bits[b >> 6] |= 1 << (b & 63)
+    fp.write(_MAGIC)
+    fp.write(struct.pack('!II', numBits, numHashes))
+    for word in bits:
+        fp.write(struct.pack('!Q', word))
+    print >>logfp, 'Wrote Bloom filter of %d words (%d bits, %d hashes) in %.1f sec' % \
+        (len(words), numBits, numHashes, time.time() - startTime)
+
+def printUsageAndExit ():
+    print >>sys.stderr, 'Usage: %s [options] dictfile outfile' % sys.argv[0]
+    print >>sys.stderr, ' -b|--bits   Bits per word (default: %d)' % _default_bits
+    sys.exit(0)
+
+def main (argv):
+    opts, args = getopt.getopt(argv, 'hb:', ['help', 'bits='])
+    bitsPerWord = _default_bits
+    for opt, arg in opts:
+        if opt == '-h' or opt == '--help':
+            printUsageAndExit()
+        elif opt == '-b' or opt == '--bits':
+            bitsPerWord = int(arg)
+    if len(args) != 2:
+        printUsageAndExit()
+    fp = open(args[0], 'rb')
+    t = trie.loadBinary(fp)
+    fp.close()
+    fp = open(args[1], 'wb')
+    writeBloom(t, fp, bitsPerWord)
+    fp.close()
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
@@ -0,0 +1,129 @@
+#! /usr/bin/env python
+# -*- coding: utf-8 -*-
+
+"""Builds the character bigram tables of LanguageIdentifier, which tells
+English, Greek and Greeklish (Greek written with Latin letters) apart.
+
+Letters are folded as wordhash.foldChar does, and fall in 52 classes: one
+for everything that is not a letter, then a to z, then α to ω.  The Greek
+model is trained on a Greek word list, the Greeklish one on the same words
+transliterated in the common ways, and the English one on an English word
+list; each line of a word list is a word and its count, the count last,
+separated by tabs.  A table entry is the cost of a class after another,
+-log2 of its smoothed probability in sixteenths of a bit, at most 255.
+
+The file is 'LGID', the version, the number of languages and the number
+of classes (a byte each), then a table of classes x classes bytes for each
+language, in the order English, Greek, Greeklish."""
+
+import sys
+import codecs
+import math
+import random
+import struct
+
+import wordhash
+
+logfp = sys.stderr
+
+_VERSION = 1
+_CLASSES = 52
+_GREEK_FIRST = 27
+# Add-k smoothing, so that no bigram is impossible
+_SMOOTHING = 0.5
+_COST_SCALE = 16
+# Greeklish spellings sampled per word
+_SAMPLES = 4
+
+# Common Latin spellings of Greek letters and letter pairs; pairs first
+_GREEKLISH = [
+    (u'ου', ['ou', 'u']), (u'αι', ['ai', 'e']), (u'ει', ['ei', 'i']),
+    (u'οι', ['oi', 'i']), (u'αυ', ['au', 'av', 'af']), (u'ευ', ['eu', 'ev', 'ef']),
+    (u'μπ', ['mp', 'b']), (u'ντ', ['nt', 'd']), (u'γκ', ['gk', 'g']),
+    (u'γγ', ['gg', 'ng']),
+    (u'α', ['a']), (u'β', ['v', 'b']), (u'γ', ['g', 'y']), (u'δ', ['d', 'dh']),
+    (u'ε', ['e']), (u'ζ', ['z']), (u'η', ['i', 'h', 'e']), (u'θ', ['th', '8']),
+    (u'ι', ['i']), (u'κ', ['k']), (u'λ', ['l']), (u'μ', ['m']), (u'ν', ['n']),
+    (u'ξ', ['ks', 'x', '3']), (u'ο', ['o']), (u'π', ['p']), (u'ρ', ['r']),
+    (u'σ', ['s']), (u'τ', ['t']), (u'υ', ['y', 'i', 'u']), (u'φ', ['f', 'ph']),
+    (u'χ', ['x', 'ch', 'h']), (u'ψ', ['ps']), (u'ω', ['w', 'o']),
+]
+
+def charClass (c):
+    code = wordhash.foldChar(ord(c))
+    if ord('a') <= code <= ord('z'):
+        return 1 + code - ord('a')
+    if 0x3b1 <= code <= 0x3c9:
+        return _GREEK_FIRST + code - 0x3b1
+    return 0
+
+def loadWords (filename):
+    words = []
+    fp = codecs.open(filename, 'r', 'utf8')
+    for line in fp:
+        fields = line.strip().split('\t')
+        if len(fields) >= 2 and fields[0]:
+            words.append((fields[0], int(fields[-1])))
+    fp.close()
+    return words
+
+def transliterate (word, rnd):
+    folded = u''.join([unichr(wordhash.foldChar(ord(c))) for c in word])
+    out = []
+    i = 0
+    while i < len(folded):
+        for greek, latin in _GREEKLISH:
+            if folded.startswith(greek, i):
+                out.append(rnd.choice(latin))
+                i += len(greek)
+                break
+        else:
+            out.append(folded[i])
+            i += 1
+    return u''.join(out)
+
+def countBigrams (words, counts):
+    for word, count in words:
+        prev = 0
+        for c in word + u' ':
+            cls = charClass(c)
+            counts[prev][cls] += count
+            prev = cls
+
+def costTable (counts):
+    table = []
+    for prev in range(_CLASSES):
+        total = sum(counts[prev]) + _SMOOTHING * _CLASSES
+        for cls in range(_CLASSES):
+            p = (counts[prev][cls] + _SMOOTHING) / total
+            table.append(min(255, int(round(-math.log(p, 2) * _COST_SCALE))))
+    return table
+
+def main (argv):
+    if len(argv) != 4:
+        print >>sys.stderr, 'Usage: %s greek_words.txt english_words.txt langid.bin' % argv[0]
+        sys.exit(1)
+    greek = loadWords(argv[1])
+    english = loadWords(argv[2])
+    rnd = random.Random(0)
+    greeklish = []
+    for word, count in greek:
+        for k in range(_SAMPLES):
+            greeklish.append((transliterate(word, rnd), float(count) / _SAMPLES))
+
+    tables = []
+    for words in (english, greek, greeklish):
+        counts = [[0] * _CLASSES for i in range(_CLASSES)]
+        countBigrams(words, counts)
+        tables.append(costTable(counts))
+
+    fp = open(argv[3], 'wb')
+    fp.write('LGID' + struct.pack('>BBB', _VERSION, len(tables), _CLASSES))
+    for table in tables:
+        fp.write(struct.pack('%dB' % len(table), *table))
+    fp.close()
+    print >>logfp, 'Wrote tables of %d languages from %d Greek and %d English words' % \
+        (len(tables), len(greek), len(english))
+
+if __name__ == '__main__':
+    main(sys.argv)
@@ -0,0 +1,131 @@
+#! /usr/bin/env python
+
+"""Reports how many memory pages and cache lines the suggestion search
+touches per keystroke, for one or more binary dictionaries (e.g., before
+and after trie.py --hot).  Every prefix of every word in the corpus is
+looked up as the native Dictionary::getWordsRec would: matching letters
+while there is input (ignoring case and accents, without alternatives),
+then completing down to three times the typed length."""
+
+import sys
+import getopt
+import codecs
+import re
+import time
+
+import trie
+import wordhash
+
+logfp = sys.stderr
+
+_default_line_size = 64
+_default_page_size = 4096
+
+class SearchStats:
+    def __init__ (self, data, lineSize, pageSize):
+        self.data = data
+        self.lineSize = lineSize
+        self.pageSize = pageSize
+        self.entries = {}  # decoded nodes, by address
+        self.queries = 0
+        self.nodes = 0
+        self.lines = 0
+        self.pages = 0
+        self.allPages = set()
+
+    def _readNode (self, pos):
+        if pos not in self.entries:
+            self.entries[pos] = trie.readEntries(self.data, pos)
+        return self.entries[pos]
+
+    def query (self, typed):
+        self._lines = set()
+        self._pages = set()
+        self._search(trie.rootAddress(self.data), 0, 3 * len(typed), typed, 0)
+        self.queries += 1
+        self.lines += len(self._lines)
+        self.pages += len(self._pages)
+        self.allPages.update(self._pages)
+
+    def _search (self, pos, depth, maxDepth, typed, inputIndex):
+        if depth > maxDepth:
+            return
+        entries, end = self._readNode(pos)
+        self.nodes += 1
+        for line in range(pos // self.lineSize, (end - 1) // self.lineSize + 1):
+            self._lines.add(line)
+        for page in range(pos // self.pageSize, (end - 1) // self.pageSize + 1):
+            self._pages.add(page)
+        for label, freq, addr in entries:
+            if addr == 0:
+                continue
+            d, i = depth, inputIndex
+            for c in label:
+                if i < len(typed):
+                    if wordhash.foldChar(ord(c)) != wordhash.foldChar(ord(typed[i])):
+                        break
+                    i += 1
+                d += 1
+            else:
+                self._search(addr, d, maxDepth, typed, i)
+
+    def report (self, name):
+        print '%-30s %8d %10.1f %10.1f %8.2f %8d' % \
+            (name, self.queries, float(self.nodes) / self.queries,
+             float(self.lines) / self.queries, float(self.pages) / self.queries,
+             len(self.allPages))
+
+def readCorpus (filename, maxWords):
+    words = []
+    fp = codecs.open(filename, 'r', 'utf8')
+    for l in fp:
+        for w in re.split(r'\W+', l, flags = re.UNICODE):
+            if len(w) > 0 and not w.isdigit():
+                words.append(w)
+                if len(words) >= maxWords:
+                    fp.close()
+                    return words
+    fp.close()
+    return words
+
+def printUsageAndExit ():
+    print >>sys.stderr, 'Usage: %s [options] corpusfile dictfile...' % sys.argv[0]
+    print >>sys.stderr, ' -n|--words  Most corpus words to use (default: all)'
+    print >>sys.stderr, ' --line=n    Cache line size (default: %d)' % _default_line_size
+    print >>sys.stderr, ' --page=n    Page size (default: %d)' % _default_page_size
+    sys.exit(0)
+
+def main (argv):
+    opts, args = getopt.getopt(argv, 'hn:', ['help', 'words=', 'line=', 'page='])
+    maxWords = sys.maxint
+    lineSize = _default_line_size
+    pageSize = _default_page_size
+    for opt, arg in opts:
+        if opt == '-h' or opt == '--help':
+            printUsageAndExit()
+        elif opt == '-n' or opt == '--words':
+            maxWords = int(arg)
+        elif opt == '--line':
+            lineSize = int(arg)
+        elif opt == '--page':
+            pageSize = int(arg)
+    if len(args) < 2:
+        printUsageAndExit()
+
+    words = readCorpus(args[0], maxWords)
+    print >>logfp, 'Read %d corpus words' % len(words)
+    print '%-30s %8s %10s %10s %8s %8s' % \
+        ('dictionary', 'queries', 'nodes/q', 'lines/q', 'pages/q', 'pages')
+    for filename in args[1:]:
+        startTime = time.time()
+        fp = open(filename, 'rb')
+        stats = SearchStats(fp.read(), lineSize, pageSize)
+        fp.close()
+        for w in words:
+            for length in range(1, len(w) + 1):
+                stats.query(w[:length])
+        stats.report(filename)
+        print >>logfp, 'Searched %s in %.1f sec' % (filename, time.time() - startTime)
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
@@ -0,0 +1,127 @@
+#! /usr/bin/env python
+
+"""Builds a minimal perfect hash index from the folded words of a binary
+dictionary to their frequencies, using hash and displace: words are
+grouped into buckets by one hash, and each bucket gets a displacement
+that sends all its words to distinct free slots.  A word's slot is its
+word id.
+
+File format (big endian):
+  magic 'GMPH', number of words n, number of buckets r, seed,
+  r 32-bit displacements, n 16-bit fingerprints, n 8-bit frequencies.
+For a word, h1 = fnv1a(word), h2 = fnv1a(word, seed); its bucket is h1 mod r.
+A displacement d >= 0 puts the word in slot (mix(h2 + d*GOLDEN) mod 2^32) mod n;
+a negative one, used for buckets of a single word, in slot -d-1.  The
+fingerprint, mix(h1) >> 16, rejects most strings that are not words."""
+
+import sys
+import getopt
+import struct
+import time
+
+import trie
+import wordhash
+
+logfp = sys.stderr
+
+_MAGIC = 'GMPH'
+
+_GOLDEN = 0x9e3779b9
+_MASK32 = 0xFFFFFFFF
+
+_default_bucket_size = 4
+
+def _slot (h2, d, n):
+    return wordhash.mix((h2 + d * _GOLDEN) & _MASK32) % n
+
+def _hashWords (t, seed):
+    """Returns a dict of (h1, h2) to (fingerprint, freq), or None if two
+    folded words collide"""
+    freqs = {}
+    for w, freq in t.words():
+        key = wordhash.fold(w)
+        freqs[key] = max(freq, freqs.get(key, 0))
+    keys = {}
+    for key, freq in freqs.iteritems():
+        h1 = wordhash.fnv1a(key)
+        h = (h1, wordhash.fnv1a(key, seed))
+        if h in keys:
+            return None
+        keys[h] = (wordhash.mix(h1) >> 16, freq)
+    return keys
+
+def writeIndex (t, fp, bucketSize = _default_bucket_size):
+    startTime = time.time()
+    seed = 1
+    keys = _hashWords(t, seed)
+    while keys is None:
+        seed += 1
+        keys = _hashWords(t, seed)
+    n = len(keys)
+    r = (n + bucketSize - 1) // bucketSize
+
+    buckets = [[] for i in range(r)]
+    for h1, h2 in keys:
+        buckets[h1 % r].append((h1, h2))
+    order = sorted(range(r), key = lambda b: -len(buckets[b]))
+
+    displacements = [0] * r
+    slots = [None] * n
+    free = 0
+    for b in order:
+        bucket = buckets[b]
+        if len(bucket) == 0:
+            break
+        if len(bucket) == 1:
+            # Place directly in the next free slot
+            while slots[free] is not None:
+                free += 1
+            slots[free] = bucket[0]
+            displacements[b] = -free - 1
+            continue
+        d = 0
+        while True:
+            placed = [_slot(h2, d, n) for h1, h2 in bucket]
+            if len(set(placed)) == len(placed) and \
+                    not [s for s in placed if slots[s] is not None]:
+                break
+            d += 1
+        for s, h in zip(placed, bucket):
+            slots[s] = h
+        displacements[b] = d
+
+    fp.write(_MAGIC)
+    fp.write(struct.pack('!iiI', n, r, seed))
+    for d in displacements:
+        fp.write(struct.pack('!i', d))
+    for h in slots:
+        fp.write(struct.pack('!H', keys[h][0]))
+    for h in slots:
+        fp.write(struct.pack('!B', keys[h][1]))
+    print >>logfp, 'Wrote perfect hash index of %d words (%d buckets) in %.1f sec' % \
+        (n, r, time.time() - startTime)
+
+def printUsageAndExit ():
+    print >>sys.stderr, 'Usage: %s [options] dictfile outfile' % sys.argv[0]
+    print >>sys.stderr, ' -b|--bucket Average words per bucket (default: %d)' % _default_bucket_size
+    sys.exit(0)
+
+def main (argv):
+    opts, args = getopt.getopt(argv, 'hb:', ['help', 'bucket='])
+    bucketSize = _default_bucket_size
+    for opt, arg in opts:
+        if opt == '-h' or opt == '--help':
+            printUsageAndExit()
+        elif opt == '-b' or opt == '--bucket':
+            bucketSize = int(arg)
+    if len(args) != 2:
+        printUsageAndExit()
+    fp = open(args[0], 'rb')
+    t = trie.loadBinary(fp)
+    fp.close()
+    fp = open(args[1], 'wb')
+    writeIndex(t, fp, bucketSize)
+    fp.close()
+
+if __name__ == '__main__':
+    main(sys.argv[1:])
@@ -0,0 +1,146 @@
+#! /usr/bin/env python
+
+"""Inflection paradigms, for trie.py --paradigms.
+
+Every word is split into a stem of at least _MIN_STEM_LENGTH letters and a
+suffix of at most _MAX_SUFFIX_LENGTH letters, in every possible way.  The
+signature of a stem is the set of suffixes that make a word with it, over
+the words of the dictionary; signatures shared by at least _MIN_STEMS stems
+are the paradigms (e.g., the endings of one noun declension).  A stem gets
+the paradigm equal to its signature, or to its signature less one suffix
+(which stays an ordinary word).  Each word then goes to at most one stem,
+preferring stems with more forms.
+
+A paradigm's suffixes are stored as a trie whose frequencies are weights
+out of 255.  A stem stores the frequency of its most frequent form (the
+scale) in a paradigm entry pointing to that trie, in place of its forms;
+the frequency of a form is then max(1, weight * scale / 255).  Each form
+allows a range of weights that give back exactly its own frequency, so
+stems of a paradigm whose ranges all overlap share one suffix trie, with
+weights from the overlap.  Stems that end up sharing it with fewer than
+_MIN_SHARED stems keep their forms as ordinary words.  Thus factoring
+changes neither the words of the dictionary nor their frequencies."""
+
+import sys
+import time
+
+import trie
+
+logfp = sys.stderr
+
+_MIN_STEM_LENGTH = 3
+_MAX_SUFFIX_LENGTH = 6
+_MIN_STEMS = 8
+# Paradigms with fewer non-empty suffixes cost more than the words they save
+_MIN_SUFFIXES = 4
+# A suffix trie shared by fewer stems costs more than the words it saves
+_MIN_SHARED = 2
+
+def _signatures (words):
+    """Returns a dict from stem to the set of its suffixes"""
+    stems = {}
+    for w in words:
+        for k in range(max(_MIN_STEM_LENGTH, len(w) - _MAX_SUFFIX_LENGTH), len(w) + 1):
+            stems.setdefault(w[:k], set()).add(w[k:])
+    return stems
+
+def induce (words):
+    """Assigns paradigms to stems of the words.  Returns a dict from stem to
+    its paradigm, a sorted tuple of suffixes."""
+    stems = _signatures(words)
+    counts = {}
+    for suffixes in stems.itervalues():
+        if len(suffixes) >= 2:
+            key = tuple(sorted(suffixes))
+            counts[key] = counts.get(key, 0) + 1
+    def isParadigm (key):
+        return counts.get(key, 0) >= _MIN_STEMS and len([s for s in key if s]) >= _MIN_SUFFIXES
+    candidates = []
+    for stem, suffixes in stems.iteritems():
+        key = tuple(sorted(suffixes))
+        if not isParadigm(key):
+            # Drop the one suffix that leaves the largest paradigm
+            best = None
+            for s in key:
+                less = tuple([s2 for s2 in key if s2 != s])
+                if isParadigm(less) and (best is None or counts[less] > counts[best]):
+                    best = less
+            key = best
+        if key is not None:
+            candidates.append((stem, key))
+    candidates.sort(key = lambda c: (-len(c[1]), -len(c[0]), c[0]))
+    claimed = set()
+    assigned = {}
+    for stem, key in candidates:
+        forms = [stem + s for s in key if s]
+        if claimed.isdisjoint(forms):
+            claimed.update(forms)
+            assigned[stem] = key
+    return assigned
+
+def _scale (stem, paradigm, words):
+    return max([words[stem + s] for s in paradigm if s])
+
+def _weightRange (freq, scale):
+    """Returns the lowest and highest weights that give freq at this scale"""
+    if freq == 1:
+        low = 1
+    else:
+        low = (255 * freq + scale - 1) // scale
+    high = min(255, (255 * (freq + 1) - 1) // scale)
+    return low, high
+
+def _share (assigned, words):
+    """Groups the stems of each paradigm whose forms can share weights.
+    Returns a list of (paradigm, weights, stems), where weights is a dict
+    from suffix to weight."""
+    byParadigm = {}
+    for stem, paradigm in assigned.iteritems():
+        byParadigm.setdefault(paradigm, []).append(stem)
+    groups = []
+    for paradigm, stems in byParadigm.iteritems():
+        suffixes = [s for s in paradigm if s]
+        # Frequent stems allow the narrowest ranges, so they go first
+        stems.sort(key = lambda stem: (-_scale(stem, paradigm, words), stem))
+        shared = []  # [ranges, stems]
+        for stem in stems:
+            scale = _scale(stem, paradigm, words)
+            ranges = [_weightRange(words[stem + s], scale) for s in suffixes]
+            for group in shared:
+                overlap = [(max(r1[0], r2[0]), min(r1[1], r2[1]))
+                           for r1, r2 in zip(group[0], ranges)]
+                if min([high - low for low, high in overlap]) >= 0:
+                    group[0] = overlap
+                    group[1].append(stem)
+                    break
+            else:
+                shared.append([ranges, [stem]])
+        for ranges, members in shared:
+            if len(members) >= _MIN_SHARED:
+                weights = dict([(s, r[0]) for s, r in zip(suffixes, ranges)])
+                groups.append((paradigm, weights, members))
+    return groups
+
+def factor (t):
+    """Returns a trie with the words of t, where stems with a paradigm
+    have a paradigm entry instead of their forms"""
+    startTime = time.time()
+    words = dict(t.words())
+    groups = _share(induce(words), words)
+    covered = set()
+    factored = trie.trie()
+    for paradigm, weights, stems in groups:
+        suffixTrie = trie.trie()
+        for s, weight in weights.iteritems():
+            suffixTrie.insert(s, weight)
+        for stem in stems:
+            factored.insertParadigm(stem, _scale(stem, paradigm, words), suffixTrie)
+            covered.update([stem + s for s in weights])
+    for w, freq in words.iteritems():
+        if w not in covered:
+            factored.insert(w, freq)
+    print >>logfp, 'Factored %d stems into %d suffix tries, covering %d words, ' \
+        'and kept %d other words in %.1f sec' % \
+        (sum([len(g[2]) for g in groups]), len(groups), len(covered),
+         len(words) - len(covered), time.time() - startTime)
+    return factored
@@ -12,13 +12,38 @@ logfp = sys.stderr
 # Byte lengths in binary encoding
 _COUNT_SIZE = 1
 _ADDR_SIZE  = 3   # non-null address
+_WIDE_ADDR_SIZE = 5  # non-null address past _WIDE_ADDRESS_START
 _NULL_SIZE  = 1   # null address
 _FREQ_SIZE  = 1 
 
+# Entry letter escapes: a 16-bit letter follows, or a path compressed label
+# (a length byte, then that many letters, each encoded as a single letter)
+_CHAR_ESCAPE  = 0xFF
+_LABEL_ESCAPE = 0xAE  # not assigned in ISO 8859-7
+_MAX_LABEL_LENGTH = 16
+# Paradigm entries have no letters: their address is the suffix trie of an
+# inflection paradigm (see paradigm.py), and their frequency byte is the
+# scale of the frequencies in it.  They have the empty string as label.
+_PARADIGM_ESCAPE = 0xD2  # not assigned in ISO 8859-7
+
 _ADDRESS_MASK       = 0x3FFFFF
+# Address flags with all six address bits set mark a wide entry, whose
+# 32-bit address follows in the next four bytes; only nodes at or beyond
+# _WIDE_ADDRESS_START need one
+_WIDE_ADDRESS_MARK  = 0x3F
+_WIDE_ADDRESS_START = _WIDE_ADDRESS_MARK << 16
 _FLAG_ADDRESS_MASK  = 0x40
 _FLAG_TERMINAL_MASK = 0x80
   
+# Header: magic, format version, feature flags, and two reserved bytes.
+# Files without it (version 0) have the root node at address 0.
+_MAGIC = 'GDIC'
+_VERSION = 2
+_HEADER_SIZE = 8
+_HEADER_WIDE_ADDRESSES = 0x01
+_HEADER_LABELS = 0x02
+_HEADER_PARADIGMS = 0x04  # since version 2
+
 class trie:
     """Implementation of a dictionary trie.
     Child entries are [freq, subtrie]"""
@@ -49,7 +74,77 @@ class trie:
         else:
             self.children[head][0] = freq
             return True
-        
+
+    def insertParadigm (self, stem, scale, suffixes):
+        """Adds a paradigm entry after stem: its words are stem followed by
+        each word of the suffixes trie, whose frequencies are out of 255
+        and get scaled by scale/255"""
+        node = self
+        for c in stem:
+            if c not in node.children:
+                node.children[c] = [None, None]
+            if node.children[c][1] is None:
+                node.children[c][1] = trie()
+            node = node.children[c][1]
+        node.children[u''] = [scale, suffixes]
+
+    def words (self, prefix = u'', scale = None):
+        """Generates (word, freq) pairs for all words in the trie"""
+        for c in sorted(self.children):
+            freq, subtrie = self.children[c]
+            if c == u'':
+                for w in subtrie.words(prefix, freq):
+                    yield w
+                continue
+            if freq is not None:
+                yield prefix + c, scaleFrequency(freq, scale)
+            if subtrie is not None:
+                for w in subtrie.words(prefix + c, scale):
+                    yield w
+
+    def minimize (self, registry = None):
+        """Merges equivalent subtries (same letters, frequencies and children),
+        turning the trie into a DAWG.  Frequencies stay with the entries
+        that lead to each node, so only suffixes with equal frequencies are
+        shared.  Returns the canonical node equivalent to this one."""
+        top = registry is None
+        if top:
+            startTime = time.time()
+            registry = {}
+        for c in self.children:
+            entry = self.children[c]
+            if entry[1] is not None:
+                entry[1] = entry[1].minimize(registry)
+        key = tuple([(c, self.children[c][0], id(self.children[c][1]))
+                     for c in sorted(self.children)])
+        node = registry.setdefault(key, self)
+        if top:
+            print >>logfp, 'Minimized trie to %d nodes in %.1f sec' % \
+                (len(registry), time.time() - startTime)
+        return node
+
+    def compress (self, seen = None):
+        """Path compression: an entry followed by a chain of nodes with one child
+        and no words ending in them becomes a single entry whose label is the
+        whole chain (up to _MAX_LABEL_LENGTH letters)"""
+        # Paradigm suffix tries are shared, and compressed once
+        if seen is None:
+            seen = set()
+        seen.add(id(self))
+        for c in list(self.children):
+            freq, subtrie = self.children[c]
+            label = c
+            while c != u'' and freq is None and subtrie is not None \
+                    and len(subtrie.children) == 1 and u'' not in subtrie.children \
+                    and len(label) < _MAX_LABEL_LENGTH:
+                (c2, (freq, subtrie)), = subtrie.children.items()
+                label += c2
+            if len(label) > 1:
+                del self.children[c]
+                self.children[label] = [freq, subtrie]
+            if subtrie is not None and id(subtrie) not in seen:
+                subtrie.compress(seen)
+
     def prettyPrint (self, fp = sys.stdout, level = 0):
         padStr = '  ' * level;
         for c in sorted(self.children):
@@ -61,18 +156,46 @@ class trie:
             if n is not None:
                 n.prettyPrint(fp, level+1)
 
+    def _entries (self):
+        """Returns the letters of the entries, in the order they are written"""
+        return getattr(self, 'order', None) or sorted(self.children)
+
+    def hotLayout (self):
+        """Orders entries by descending total frequency of the words through
+        them, and makes dump() lay nodes out depth-first in that order (with
+        the children of a node kept together), so that the most likely
+        paths are close together.  Run right before dump."""
+        startTime = time.time()
+        weights = {}
+        def weight (t):
+            if id(t) not in weights:
+                w = 0
+                for c in t.children:
+                    w += entryWeight(t, c)
+                weights[id(t)] = w
+            return weights[id(t)]
+        def entryWeight (t, c):
+            freq, subtrie = t.children[c]
+            if c == u'':
+                return weight(subtrie) * freq / 255
+            return (freq or 0) + (subtrie is not None and weight(subtrie) or 0)
+        weight(self)
+        for t in self._nodes():
+            t.order = sorted(t.children, key = lambda c: (-entryWeight(t, c), c))
+        self.depthFirst = True
+        print >>logfp, 'Ordered trie by frequency in %.1f sec' % (time.time() - startTime)
+
     def _codeSize (self, encoding):
         assert len(self.children) > 0
         sz = _COUNT_SIZE
-        for c in sorted(self.children):
+        for c in self._entries():
             freq, subtrie = self.children[c]
-            try:
-                c.encode(encoding)
-                sz += 1
-            except UnicodeEncodeError:
-                sz += 3
+            sz += len(_encodeLabel(c, encoding))
             if subtrie is not None:
-                sz += _ADDR_SIZE
+                if getattr(subtrie, 'addr', 0) >= _WIDE_ADDRESS_START:
+                    sz += _WIDE_ADDR_SIZE
+                else:
+                    sz += _ADDR_SIZE
             else:
                 sz += _NULL_SIZE
             if freq is not None:
@@ -81,36 +204,84 @@ class trie:
     
     def _assignAddresses (self, encoding, start = 0):
         startTime = time.time()
-        q = []  # queue for breadth-first search
-        addr = start
-        q.append(self)
-        while len(q) > 0:
-            trie = q.pop(0)
-            trie.addr = addr
-            addr += trie._codeSize(encoding)
-            for c in sorted(trie.children):
-                freq, subtrie = trie.children[c]
-                if subtrie is not None:
-                    q.append(subtrie)
+        nodes = self._nodes()
+        for trie in nodes:
+            trie.addr = 0
+        # Entries pointing past _WIDE_ADDRESS_START grow, which may push more
+        # nodes past it; repeat until no address changes
+        changed = True
+        while changed:
+            changed = False
+            addr = start
+            for trie in nodes:
+                if trie.addr != addr:
+                    trie.addr = addr
+                    changed = True
+                addr += trie._codeSize(encoding)
         print >>logfp, "Assigned addresses in %.1f" % (time.time() - startTime)
 
+    def _nodes (self):
+        """Lists the nodes in breadth-first order, or depth-first after
+        hotLayout(); nodes shared by minimize() are listed once"""
+        nodes = []
+        seen = set([id(self)])
+        if getattr(self, 'depthFirst', False):
+            # The children of a node are placed together, then each of their
+            # subtries in turn, most frequent first
+            nodes.append(self)
+            stack = [self]
+            while len(stack) > 0:
+                trie = stack.pop()
+                placed = []
+                for c in trie._entries():
+                    freq, subtrie = trie.children[c]
+                    if subtrie is not None and id(subtrie) not in seen:
+                        seen.add(id(subtrie))
+                        nodes.append(subtrie)
+                        placed.append(subtrie)
+                stack.extend(reversed(placed))
+            return nodes
+        nodes.append(self)
+        i = 0
+        while i < len(nodes):
+            trie = nodes[i]
+            i += 1
+            for c in trie._entries():
+                freq, subtrie = trie.children[c]
+                if subtrie is not None and id(subtrie) not in seen:
+                    seen.add(id(subtrie))
+                    nodes.append(subtrie)
+        return nodes
+
     def dump (self, fp, encoding = 'iso8859-7'):
-        self._assignAddresses(encoding)
+        self._assignAddresses(encoding, _HEADER_SIZE)
         startTime = time.time()
-        q = [] # queue for breadth-first search
-        q.append(self)
-        while len(q) > 0:
-            trie = q.pop(0)
+        nodes = self._nodes()
+        flags = 0
+        for trie in nodes:
+            for c in trie.children:
+                if len(c) > 1:
+                    flags |= _HEADER_LABELS
+                elif len(c) == 0:
+                    flags |= _HEADER_PARADIGMS
+                if trie.children[c][1] is not None \
+                        and trie.children[c][1].addr >= _WIDE_ADDRESS_START:
+                    flags |= _HEADER_WIDE_ADDRESSES
+        fp.write(_MAGIC)
+        fp.write(struct.pack('!BBH', _VERSION, flags, 0))
+        for trie in nodes:
             fp.write(chr(len(trie.children)))  # write no. of children
-            for c in sorted(trie.children):
-                try:
-                    fp.write(c.encode(encoding))
-                except UnicodeEncodeError:
-                    fp.write(struct.pack('!BH', 0xFF, ord(c)))
+            for c in trie._entries():
+                fp.write(_encodeLabel(c, encoding))
                 freq, subtrie = trie.children[c]
-                if subtrie is not None:
-                    # Add it to be visited
-                    q.append(subtrie)
+                if subtrie is not None and subtrie.addr >= _WIDE_ADDRESS_START:
+                    flags = _FLAG_ADDRESS_MASK | _WIDE_ADDRESS_MARK
+                    if freq is not None:
+                        flags |= _FLAG_TERMINAL_MASK
+                    fp.write(struct.pack('!BI', flags, subtrie.addr))
+                    if freq is not None:
+                        fp.write(struct.pack('!B', freq))
+                elif subtrie is not None:
                     # Create address
                     assert(subtrie.addr & ~_ADDRESS_MASK == 0)
                     addr = subtrie.addr & _ADDRESS_MASK
@@ -127,6 +298,163 @@ class trie:
                     fp.write(struct.pack('!BB', _FLAG_TERMINAL_MASK, freq))
         print >>logfp, 'Dumped trie in %.1f sec' % (time.time() - startTime)
 
+    def dumpLouds (self, fp):
+        """Writes the trie in LOUDS form (see _LOUDS_MAGIC); shared nodes
+        of a minimized trie are expanded again"""
+        startTime = time.time()
+        structure = []  # LOUDS bits: each node's degree in unary, then a zero
+        terminal = [False]  # per node, root first
+        labels = []     # per node after the root
+        freqs = []      # per terminal node
+        q = [self]
+        i = 0
+        while i < len(q):
+            node = q[i]
+            i += 1
+            # Leaves are None, and have no children
+            children = {}
+            if node is not None:
+                children = node.children
+            for c in sorted(children):
+                freq, subtrie = children[c]
+                assert len(c) == 1, 'LOUDS tries cannot be path compressed or have paradigms'
+                structure.append(True)
+                labels.append(c)
+                terminal.append(freq is not None)
+                if freq is not None:
+                    freqs.append(freq)
+                q.append(subtrie)
+            structure.append(False)
+        alphabet = sorted(set(labels))
+        assert len(alphabet) <= 256
+        index = dict([(c, k) for k, c in enumerate(alphabet)])
+        fp.write(_LOUDS_MAGIC)
+        fp.write(struct.pack('!iii', len(q), len(freqs), len(alphabet)))
+        for c in alphabet:
+            fp.write(struct.pack('!H', ord(c)))
+        _writeBits(fp, structure)
+        _writeBits(fp, terminal)
+        for c in labels:
+            fp.write(struct.pack('!B', index[c]))
+        for freq in freqs:
+            fp.write(struct.pack('!B', freq))
+        print >>logfp, 'Dumped LOUDS trie of %d nodes in %.1f sec' % \
+            (len(q), time.time() - startTime)
+
+# LOUDS format (big endian): magic, number of nodes n, number of words w,
+# alphabet size a; a 16-bit letters; the 2n-1 LOUDS structure bits (nodes in
+# breadth-first order, each as one 1 per child followed by a 0); n terminal
+# bits, one per node; n-1 label bytes, one per non-root node, indexing the
+# alphabet; w frequency bytes, one per terminal node.  Bit vectors are
+# padded to whole bytes, most significant bit first.
+_LOUDS_MAGIC = 'GLDS'
+
+def _writeBits (fp, bits):
+    for i in range(0, len(bits), 8):
+        byte = 0
+        for j, bit in enumerate(bits[i:i+8]):
+            if bit:
+                byte |= 0x80 >> j
+        fp.write(struct.pack('!B', byte))
+
+def _encodeChar (c, encoding):
+    try:
+        return c.encode(encoding)
+    except UnicodeEncodeError:
+        return struct.pack('!BH', _CHAR_ESCAPE, ord(c))
+
+def _encodeLabel (label, encoding):
+    """Encodes the letters of an entry"""
+    if len(label) == 0:
+        return struct.pack('!B', _PARADIGM_ESCAPE)
+    if len(label) == 1:
+        return _encodeChar(label, encoding)
+    return struct.pack('!BB', _LABEL_ESCAPE, len(label)) + \
+        ''.join([_encodeChar(c, encoding) for c in label])
+
+def _readChar (data, pos, encoding):
+    """Returns a letter and the position after it"""
+    code = struct.unpack_from('!B', data, pos)[0]
+    if code == _CHAR_ESCAPE:
+        return unichr(struct.unpack_from('!H', data, pos + 1)[0]), pos + 3
+    return struct.pack('!B', code).decode(encoding), pos + 1
+
+def readEntries (data, pos, encoding = 'iso8859-7'):
+    """Reads the node at pos of a binary dictionary; returns its entries,
+    as (label, freq, addr) with None for no frequency and 0 for no children,
+    and the position after the node"""
+    entries = []
+    count = struct.unpack_from('!B', data, pos)[0]
+    pos += _COUNT_SIZE
+    for i in range(count):
+        escape = struct.unpack_from('!B', data, pos)[0]
+        if escape == _LABEL_ESCAPE:
+            length = struct.unpack_from('!B', data, pos + 1)[0]
+            pos += 2
+            c = u''
+            for j in range(length):
+                letter, pos = _readChar(data, pos, encoding)
+                c += letter
+        elif escape == _PARADIGM_ESCAPE:
+            c = u''
+            pos += 1
+        else:
+            c, pos = _readChar(data, pos, encoding)
+        flags = struct.unpack_from('!B', data, pos)[0]
+        if flags & _FLAG_ADDRESS_MASK and flags & _WIDE_ADDRESS_MARK == _WIDE_ADDRESS_MARK:
+            addr = struct.unpack_from('!I', data, pos + 1)[0]
+            pos += _WIDE_ADDR_SIZE
+        elif flags & _FLAG_ADDRESS_MASK:
+            addr = ((flags << 16) | struct.unpack_from('!H', data, pos + 1)[0]) & _ADDRESS_MASK
+            pos += _ADDR_SIZE
+        else:
+            addr = 0
+            pos += _NULL_SIZE
+        freq = None
+        if flags & _FLAG_TERMINAL_MASK:
+            freq = struct.unpack_from('!B', data, pos)[0]
+            pos += _FREQ_SIZE
+        entries.append((c, freq, addr))
+    return entries, pos
+
+def rootAddress (data):
+    """Returns the address of the root node of a binary dictionary"""
+    if data[:len(_MAGIC)] == _MAGIC:
+        version = struct.unpack_from('!B', data, len(_MAGIC))[0]
+        assert version <= _VERSION, 'Unsupported dictionary version %d' % version
+        return _HEADER_SIZE
+    return 0
+
+def _readNode (data, pos, encoding, shared):
+    """Reads the node at pos of a binary dictionary; returns a trie.
+    Paradigm suffix tries are read once, into shared."""
+    t = trie()
+    for c, freq, addr in readEntries(data, pos, encoding)[0]:
+        subtrie = None
+        if c == u'':
+            if addr not in shared:
+                shared[addr] = _readNode(data, addr, encoding, shared)
+            subtrie = shared[addr]
+        elif addr != 0:
+            subtrie = _readNode(data, addr, encoding, shared)
+        t.children[c] = [freq, subtrie]
+    return t
+
+def loadBinary (fp, encoding = 'iso8859-7'):
+    """Reads a binary dictionary (as written by trie.dump) back into a trie"""
+    startTime = time.time()
+    data = fp.read()
+    t = _readNode(data, rootAddress(data), encoding, {})
+    print >>logfp, 'Read binary dictionary in %.1f sec' % (time.time() - startTime)
+    return t
+
+def scaleFrequency (freq, scale):
+    """Frequency of a paradigm form, from its weight and the stem's scale,
+    as the native code computes it"""
+    if scale is None:
+        return freq
+    return max(1, freq * scale / 255)
+
 def identity (x):
     return x
 
@@ -181,15 +509,30 @@ def printUsageAndExit ():
     print >>sys.stderr, ' --lin       Linear scaling (no transformation); default'
     print >>sys.stderr, ' -s|-scale   Scale to this maximum value'
     print >>sys.stderr, '               (default: %d)' % _default_scale
+    print >>sys.stderr, ' -m|--minimize  Merge equal suffixes (write a DAWG)'
+    print >>sys.stderr, ' -r|--radix  Store chains of single letters as one entry'
+    print >>sys.stderr, ' --hot       Lay out frequent paths first, depth-first'
+    print >>sys.stderr, ' -p|--paradigms  Store inflected forms as stems with paradigms'
+    print >>sys.stderr, ' --louds     Write a LOUDS encoded trie'
+    print >>sys.stderr, ' --bloom=f   Also write a Bloom filter of the words to f'
+    print >>sys.stderr, ' --mph=f     Also write a perfect hash frequency index to f'
     sys.exit(0)
 
 def main (argv):
-    opts, args = getopt.getopt(sys.argv[1:], 'h12t:s:', 
-                               ['help', 'onepass', 'twopass', 'thresh=', 'scale=', 'log', 'sqrt', 'lin'])
+    opts, args = getopt.getopt(sys.argv[1:], 'h12t:s:mrp', 
+                               ['help', 'onepass', 'twopass', 'thresh=', 'scale=', 'log', 'sqrt', 'lin',
+                                'minimize', 'radix', 'hot', 'paradigms', 'louds', 'bloom=', 'mph='])
     thresh = _default_thresh
     scale = _default_scale
     xform = _default_xform
     twoPass = True
+    bloomFilename = None
+    mphFilename = None
+    minimize = False
+    louds = False
+    radix = False
+    hot = False
+    paradigms = False
     for opt, arg in opts:
         if opt == '-h' or opt == '--help':
             printUsageAndExit()
@@ -207,6 +550,20 @@ def main (argv):
             xform = math.sqrt
         elif opt == '--lin':
             xform = identity
+        elif opt == '-m' or opt == '--minimize':
+            minimize = True
+        elif opt == '-r' or opt == '--radix':
+            radix = True
+        elif opt == '--hot':
+            hot = True
+        elif opt == '-p' or opt == '--paradigms':
+            paradigms = True
+        elif opt == '--louds':
+            louds = True
+        elif opt == '--bloom':
+            bloomFilename = arg
+        elif opt == '--mph':
+            mphFilename = arg
         else:
             print >>sys.stderr, 'Invalid option:', opt
             printUsageAndExit()
@@ -231,10 +588,39 @@ def main (argv):
         t = loadDict(fp, t, thresh, scale, xform, noExpand=True)
         fp.close()
     
+    if (radix or paradigms) and louds:
+        print >>sys.stderr, 'Path compression and paradigms are not possible in LOUDS tries'
+        sys.exit(1)
+
+    if paradigms:
+        import paradigm
+        t = paradigm.factor(t)
+    if radix:
+        t.compress()
+    if minimize:
+        t = t.minimize()
+    if hot:
+        t.hotLayout()
+
     # Dump it in binary format
     fp = open(outFilename, 'w')
-    t.dump(fp)
+    if louds:
+        t.dumpLouds(fp)
+    else:
+        t.dump(fp)
     fp.close()
 
+    if bloomFilename is not None:
+        import bloom
+        fp = open(bloomFilename, 'wb')
+        bloom.writeBloom(t, fp)
+        fp.close()
+
+    if mphFilename is not None:
+        import mph
+        fp = open(mphFilename, 'wb')
+        mph.writeIndex(t, fp)
+        fp.close()
+
 if __name__ == '__main__':
     main(sys.argv[1:])
@@ -0,0 +1,45 @@
+#! /usr/bin/env python
+# -*- coding: utf-8 -*-
+
+"""Word folding and hashing shared by the dictionary side files.
+Must match net.bitquill.inputmethod.greek.WordHash exactly."""
+
+_MASK32 = 0xFFFFFFFF
+
+_FNV_OFFSET = 0x811c9dc5
+_FNV_PRIME  = 0x01000193
+
+# Accented and upper case Greek letters, and what they fold to
+_FOLD_FROM = u'ΆΈΉΊΌΎΏΐΪΫ' + \
+             u'άέήίΰςϊϋόύώ'
+_FOLD_TO   = u'αεηιουωιιυ' + \
+             u'αεηιυσιυουω'
+_FOLD = dict(zip([ord(c) for c in _FOLD_FROM], [ord(c) for c in _FOLD_TO]))
+
+def foldChar (code):
+    """Folds case, accents and final sigma of a UTF-16 code unit"""
+    if 0x41 <= code <= 0x5a:
+        return code + 0x20
+    if 0x391 <= code <= 0x3a9:
+        return code + 0x20
+    return _FOLD.get(code, code)
+
+def fold (word):
+    return u''.join([unichr(foldChar(ord(c))) for c in word])
+
+def fnv1a (word, seed = 0):
+    """32-bit FNV-1a over the folded UTF-16 code units of word; a non-zero
+    seed gives a different hash function"""
+    h = _FNV_OFFSET ^ seed
+    for c in word:
+        h = ((h ^ foldChar(ord(c))) * _FNV_PRIME) & _MASK32
+    return h
+
+def mix (h):
+    """Murmur3 finalizer, to derive a second hash"""
+    h ^= h >> 16
+    h = (h * 0x85ebca6b) & _MASK32
+    h ^= h >> 13
+    h = (h * 0xc2b2ae35) & _MASK32
+    h ^= h >> 16
+    return h
@@ -17,9 +17,11 @@
 */
 
 #include <stdio.h>
+#include <stdlib.h>
 #include <fcntl.h>
 #include <sys/mman.h>
 #include <string.h>
+#include <time.h>
 //#include <cutils/log.h>  // Not available in NDK
 
 // ICU4C not available in NDK,
@@ -35,19 +37,130 @@
 
 namespace greekim {
 
+static int
+readInt(unsigned char *p)
+{
+    return (p[0] << 24) | (p[1] << 16) | (p[2] << 8) | p[3];
+}
+
 Dictionary::Dictionary(unsigned char *dict, int typedLetterMultiplier, int fullWordMultiplier)
 {
     mDict = dict;
     mTypedLetterMultiplier = typedLetterMultiplier;
     mFullWordMultiplier = fullWordMultiplier;
+    mLouds = false;
+    mAlphabet = NULL;
+    mStructureRanks = NULL;
+    mTerminalRanks = NULL;
+    mSelectSamples = NULL;
+    mRoot = 0;
+    mOwner = NULL;
+    initSearchState();
+    setCodeChars(ISO_TO_UNICODE, CODE_COUNT);
+    int magic = readInt(dict);
+    if (magic == LOUDS_MAGIC) {
+        initLouds();
+    } else if (magic == DICT_MAGIC) {
+        // Without the magic, a version 0 dictionary with the root at the start
+        mRoot = dict[4] <= DICT_VERSION ? DICT_HEADER_SIZE : -1;
+    }
+}
+
+// A worker for the parallel search of owner, sharing its tables
+Dictionary::Dictionary(Dictionary *owner)
+{
+    mOwner = owner;
+    mDict = owner->mDict;
+    mAsset = NULL;
+    mTypedLetterMultiplier = owner->mTypedLetterMultiplier;
+    mFullWordMultiplier = owner->mFullWordMultiplier;
+    mLouds = owner->mLouds;
+    mNodeCount = owner->mNodeCount;
+    mAlphabet = owner->mAlphabet;
+    mStructure = owner->mStructure;
+    mTerminals = owner->mTerminals;
+    mLabels = owner->mLabels;
+    mLoudsFreqs = owner->mLoudsFreqs;
+    mStructureRanks = owner->mStructureRanks;
+    mTerminalRanks = owner->mTerminalRanks;
+    mSelectSamples = owner->mSelectSamples;
+    mRoot = owner->mRoot;
+    memcpy(mCodeChars, owner->mCodeChars, sizeof(mCodeChars));
+    memcpy(mCodeFirstLower, owner->mCodeFirstLower, sizeof(mCodeFirstLower));
+    memcpy(mCodeLower, owner->mCodeLower, sizeof(mCodeLower));
+    initSearchState();
+}
+
+void
+Dictionary::initSearchState()
+{
+    mParadigmScale = 0;
+    mMatchRanks = NULL;
+    mMatchRanksSize = 0;
+    mMaxNodes = 0;
+    mNodesLeft = 0;
+    mPartial = false;
+    mThreadCount = 0;
+    mWorkers = NULL;
+    mThreads = NULL;
+    mTasks = NULL;
+    mNextTasks = NULL;
+    mTaskCount = 0;
+    mSplitting = false;
+    mSplitOverflow = false;
+    mOwnFrequencies = NULL;
+    mOwnOutputChars = NULL;
+    mOutputKeys = NULL;
+    mOwnMaxWords = 0;
+    mOwnMaxWordLength = 0;
 }
 
 Dictionary::~Dictionary()
 {
+    if (mThreadCount > 0) {
+        pthread_mutex_lock(&mLock);
+        mQuit = true;
+        pthread_cond_broadcast(&mWorkReady);
+        pthread_mutex_unlock(&mLock);
+        for (int i = 0; i < mThreadCount - 1; i++) {
+            pthread_join(mThreads[i], NULL);
+        }
+        for (int i = 0; i < mThreadCount; i++) {
+            delete mWorkers[i];
+        }
+        delete[] mWorkers;
+        delete[] mThreads;
+        delete[] mTasks;
+        delete[] mNextTasks;
+        pthread_cond_destroy(&mWorkDone);
+        pthread_cond_destroy(&mWorkReady);
+        pthread_mutex_destroy(&mLock);
+    }
+    if (mOwner == NULL) {
+        delete[] mAlphabet;
+        delete[] mStructureRanks;
+        delete[] mTerminalRanks;
+        delete[] mSelectSamples;
+    }
+    delete[] mMatchRanks;
+    delete[] mOwnFrequencies;
+    delete[] mOwnOutputChars;
+    delete[] mOutputKeys;
+}
+
+static long long
+nowMicros()
+{
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return now.tv_sec * 1000000LL + now.tv_nsec / 1000;
 }
 
+// Searches for at most maxNodes nodes and maxMicros microseconds; if either runs
+// out, the words found so far are returned and isPartial() is true.
 int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives)
+        int maxWordLength, int maxWords, int maxAlternatives, int maxNodes, int maxMicros,
+        bool includeTyped)
 {
     memset(frequencies, 0, maxWords * sizeof(*frequencies));
     memset(outWords, 0, maxWords * maxWordLength * sizeof(*outWords));
@@ -56,37 +169,267 @@ int Dictionary::getSuggestions(int *codes, int codesSize, unsigned short *outWor
     mOutputChars = outWords;
     mInputCodes = codes;
     mInputLength = codesSize;
+    mIncludeTyped = includeTyped;
     mMaxAlternatives = maxAlternatives;
     mMaxWordLength = maxWordLength;
     mMaxWords = maxWords;
     mWords = 0;
+    mMaxNodes = maxNodes;
+    mNodesLeft = maxNodes;
+    mDeadline = nowMicros() + maxMicros;
+    mPartial = false;
 
-    getWordsRec(0, 0, mInputLength * 3, false, 1, 0);
+    if (mRoot < 0) return 0;
+    clearMatchRanks();
+    // Words must fit in the output, and in the search stack
+    int maxDepth = mInputLength * 3;
+    if (maxDepth > maxWordLength - 2) maxDepth = maxWordLength - 2;
+    if (maxDepth > MAX_SEARCH_DEPTH) maxDepth = MAX_SEARCH_DEPTH;
+    if (mThreadCount > 1 && maxNodes > PARALLEL_MIN_NODES) {
+        // Most searches are too small to be worth handing to other threads; only
+        // those that outgrow a sequential probe are searched again in parallel.
+        // The probe's results are thrown away, so the parallel search gets the
+        // whole node budget; otherwise a search that fits in maxNodes when done
+        // sequentially could come back partial
+        mNodesLeft = PARALLEL_MIN_NODES;
+        getWordsIter(mRoot, maxDepth);
+        if (mPartial && nowMicros() <= mDeadline) {
+            memset(frequencies, 0, maxWords * sizeof(*frequencies));
+            memset(outWords, 0, maxWords * maxWordLength * sizeof(*outWords));
+            mWords = 0;
+            mPartial = false;
+            mNodesLeft = maxNodes;
+            getWordsParallel(maxDepth);
+        } else {
+            mNodesLeft += maxNodes - PARALLEL_MIN_NODES;
+        }
+    } else {
+        getWordsIter(mRoot, maxDepth);
+    }
 
     //if (DEBUG_DICT) LOGI("Returning %d words", mWords);
     return mWords;
 }
 
+// Sets up the sections of a LOUDS dictionary: nodes are numbered in breadth-first
+// order, so the children of a node are consecutive and are found by rank and select
+// on the structure bits. Rank directories are built here rather than stored.
+void
+Dictionary::initLouds()
+{
+    mLouds = true;
+    mNodeCount = readInt(mDict + 4);
+    // The word count, at mDict + 8, is implied by the terminal bits
+    int alphabetSize = readInt(mDict + 12);
+    unsigned char *p = mDict + 16;
+    mAlphabet = new unsigned short[alphabetSize];
+    for (int i = 0; i < alphabetSize; i++, p += 2) {
+        mAlphabet[i] = (p[0] << 8) | p[1];
+    }
+    setCodeChars(mAlphabet, alphabetSize);
+    int structureLength = 2 * mNodeCount - 1;
+    mStructure = p;
+    p += (structureLength + 7) / 8;
+    mTerminals = p;
+    p += (mNodeCount + 7) / 8;
+    mLabels = p;
+    p += mNodeCount - 1;
+    mLoudsFreqs = p;
+    mStructureRanks = buildRanks(mStructure, structureLength);
+    mTerminalRanks = buildRanks(mTerminals, mNodeCount);
+
+    // mSelectSamples[j] is the rank block holding zero number j * SELECT_SAMPLE_ZEROS + 1
+    int blocks = structureLength / RANK_BLOCK_BITS + 1;
+    int samples = mNodeCount / SELECT_SAMPLE_ZEROS + 2;
+    mSelectSamples = new int[samples];
+    int block = 0;
+    for (int j = 0; j < samples; j++) {
+        int k = j * SELECT_SAMPLE_ZEROS + 1;
+        while (block + 1 < blocks
+                && (block + 1) * RANK_BLOCK_BITS - mStructureRanks[block + 1] < k) {
+            block++;
+        }
+        mSelectSamples[j] = block;
+    }
+}
+
+// ranks[b] is the number of ones before bit b * RANK_BLOCK_BITS
+int *
+Dictionary::buildRanks(unsigned char *bits, int length)
+{
+    int blocks = length / RANK_BLOCK_BITS + 1;
+    int *ranks = new int[blocks];
+    int ones = 0;
+    for (int b = 0; b < blocks; b++) {
+        ranks[b] = ones;
+        int end = (b + 1) * RANK_BLOCK_BITS / 8;
+        int bytes = (length + 7) / 8;
+        for (int i = b * RANK_BLOCK_BITS / 8; i < end && i < bytes; i++) {
+            ones += __builtin_popcount(bits[i]);
+        }
+    }
+    return ranks;
+}
+
+// Number of ones before bit i
+int
+Dictionary::rank1(unsigned char *bits, int *ranks, int i)
+{
+    int block = i / RANK_BLOCK_BITS;
+    int ones = ranks[block];
+    int byte = block * RANK_BLOCK_BITS / 8;
+    for (; byte < (i >> 3); byte++) {
+        ones += __builtin_popcount(bits[byte]);
+    }
+    if (i & 7) {
+        ones += __builtin_popcount(bits[byte] >> (8 - (i & 7)));
+    }
+    return ones;
+}
+
+// Position of the k-th zero (counting from 1) of the structure bits
+int
+Dictionary::select0(int k)
+{
+    // Last block with fewer than k zeros before it
+    int sample = (k - 1) / SELECT_SAMPLE_ZEROS;
+    int low = mSelectSamples[sample];
+    int high = mSelectSamples[sample + 1];
+    while (low < high) {
+        int mid = (low + high + 1) / 2;
+        if (mid * RANK_BLOCK_BITS - mStructureRanks[mid] < k) {
+            low = mid;
+        } else {
+            high = mid - 1;
+        }
+    }
+    k -= low * RANK_BLOCK_BITS - mStructureRanks[low];
+    int byte = low * RANK_BLOCK_BITS / 8;
+    int zeros;
+    while ((zeros = 8 - __builtin_popcount(mStructure[byte])) < k) {
+        k -= zeros;
+        byte++;
+    }
+    int i = byte * 8;
+    for (;; i++) {
+        if (!getBit(mStructure, i) && --k == 0) break;
+    }
+    return i;
+}
+
+// Returns the number of children, and sets up the iterator over them
+int
+Dictionary::openNode(int address, ChildIterator *it)
+{
+    if (!mLouds) {
+        it->pos = address;
+        return getCount(&it->pos);
+    }
+    int end = address;
+    while (getBit(mStructure, end)) {
+        end++;
+    }
+    int count = end - address;
+    if (count > 0) {
+        // Children are numbered consecutively, and so are their runs
+        it->node = rank1(mStructure, mStructureRanks, address) + 1;
+        it->pos = select0(it->node) + 1;
+        it->freqIndex = rank1(mTerminals, mTerminalRanks, it->node);
+    }
+    return count;
+}
+
 unsigned short
-Dictionary::getChar(int *pos)
+Dictionary::nextChild(ChildIterator *it, bool *terminal, int *childrenAddress, int *freq)
+{
+    if (!mLouds) {
+        unsigned short c;
+        if (mDict[it->pos] == LABEL_ESCAPE) {
+            it->labelLength = mDict[it->pos + 1];
+            it->pos += 2;
+            for (int i = 0; i < it->labelLength; i++) {
+                it->label[i] = getChar(&it->pos, &it->codes[i]);
+            }
+            c = it->label[0];
+        } else if (mDict[it->pos] == PARADIGM_ESCAPE) {
+            // Not a word itself; the frequency byte is the paradigm's scale
+            it->pos++;
+            it->labelLength = 0;
+            *terminal = false;
+            *childrenAddress = getAddress(&it->pos);
+            *freq = getFreq(&it->pos);
+            return 0;
+        } else {
+            c = getChar(&it->pos, &it->codes[0]);
+            it->label[0] = c;
+            it->labelLength = 1;
+        }
+        *terminal = getTerminal(&it->pos);
+        *childrenAddress = getAddress(&it->pos);
+        *freq = *terminal ? scaleFreq(getFreq(&it->pos)) : 0;
+        return c;
+    }
+    int node = it->node++;
+    int end = it->pos;
+    while (getBit(mStructure, end)) {
+        end++;
+    }
+    *childrenAddress = end > it->pos ? it->pos : 0;
+    it->pos = end + 1;
+    *terminal = getBit(mTerminals, node) != 0;
+    *freq = *terminal ? mLoudsFreqs[it->freqIndex++] : 0;
+    it->codes[0] = mLabels[node - 1];
+    it->label[0] = mAlphabet[it->codes[0]];
+    it->labelLength = 1;
+    return it->label[0];
+}
+
+// Frequency of a word in the suffix trie of a paradigm, for the stem being walked
+int
+Dictionary::scaleFreq(int freq)
+{
+    if (mParadigmScale == 0) {
+        return freq;
+    }
+    freq = freq * mParadigmScale / 255;
+    return freq > 0 ? freq : 1;
+}
+
+unsigned short
+Dictionary::getChar(int *pos, short *code)
 {
     unsigned short ch = (unsigned short) (mDict[(*pos)++] & 0xFF);
     // If the code is 255, then actual 16 bit code follows (in big endian)
     if (ch == 0xFF) {
         ch = ((mDict[*pos] & 0xFF) << 8) | (mDict[*pos + 1] & 0xFF);
         (*pos) += 2;
+        *code = NO_CODE;
     } else {
+        *code = ch;
     	ch = ISO_TO_UNICODE[ch];
     }
     return ch;
 }
 
+void
+Dictionary::setCodeChars(unsigned short *chars, int count)
+{
+    for (int k = 0; k < CODE_COUNT; k++) {
+        mCodeChars[k] = k < count ? chars[k] : 0;
+        mCodeFirstLower[k] = toLowerCase(mCodeChars[k], 0);
+        mCodeLower[k] = toLowerCase(mCodeChars[k], 1);
+    }
+}
+
 int
 Dictionary::getAddress(int *pos)
 {
     int address = 0;
     if ((mDict[*pos] & FLAG_ADDRESS_MASK) == 0) {
         *pos += 1;
+    } else if ((mDict[*pos] & WIDE_ADDRESS_MARK) == WIDE_ADDRESS_MARK) {
+        address = readInt(mDict + *pos + 1);
+        *pos += 5;
     } else {
         address += (mDict[*pos] & (ADDRESS_MASK >> 16)) << 16;
         address += (mDict[*pos + 1] & 0xFF) << 8;
@@ -109,6 +452,18 @@ Dictionary::wideStrLen(unsigned short *str)
 bool
 Dictionary::addWord(unsigned short *word, int length, int frequency)
 {
+    if (mSplitting) {
+        SearchTask *task = addTask(length);
+        if (task != NULL) {
+            task->isWord = true;
+            task->freq = frequency;
+        }
+        return task != NULL;
+    }
+    // No worker keeps words that cannot be among the best of all workers
+    if (mOwner != NULL && frequency < mOwner->mSharedBound) {
+        return false;
+    }
     word[length] = 0;
     //if (DEBUG_DICT) LOGI("Found word = %s, freq = %d : \n", word, frequency);
 
@@ -130,13 +485,21 @@ Dictionary::addWord(unsigned short *word, int length, int frequency)
         memmove((char*) mOutputChars + (insertAt + 1) * mMaxWordLength * sizeof(short),
                (char*) mOutputChars + (insertAt    ) * mMaxWordLength * sizeof(short),
                (mMaxWords - insertAt - 1) * sizeof(short) * mMaxWordLength);
+        if (mOutputKeys != NULL) {
+            memmove(mOutputKeys + insertAt + 1, mOutputKeys + insertAt,
+                    (mMaxWords - insertAt - 1) * sizeof(mOutputKeys[0]));
+            mOutputKeys[insertAt] = mCurrentKey;
+        }
         unsigned short *dest = mOutputChars + (insertAt    ) * mMaxWordLength;
         while (length--) {
             *dest++ = *word++;
         }
         *dest = 0; // NULL terminate
         // Update the word count
-        if (insertAt + 1 > mWords) mWords = insertAt + 1;
+        if (mWords < mMaxWords) mWords++;
+        if (mOwner != NULL && mWords == mMaxWords) {
+            mOwner->raiseBound(mFrequencies[mMaxWords - 1]);
+        }
         //if (DEBUG_DICT) LOGI("Added word at %d\n", insertAt);
         return true;
     }
@@ -177,108 +540,765 @@ Dictionary::sameAsTyped(unsigned short *word, int length)
 
 static char QUOTE = '\'';
 
+// Letters are matched against the alternatives at each input position at most once
+// per search, the first time they are met there
 void
-Dictionary::getWordsRec(int pos, int depth, int maxDepth, bool completion, int snr, int inputIndex)
+Dictionary::clearMatchRanks()
 {
-    // Optimization: Prune out words that are too long compared to how much was typed.
-    if (depth > maxDepth) {
-        return;
+    int size = (mInputLength + 1) * CODE_COUNT;
+    if (size > mMatchRanksSize) {
+        delete[] mMatchRanks;
+        mMatchRanks = new unsigned char[size];
+        mMatchRanksSize = size;
     }
-    int count = getCount(&pos);
-    int *currentChars = NULL;
-    if (mInputLength <= inputIndex) {
-        completion = true;
-    } else {
-        currentChars = mInputCodes + (inputIndex * mMaxAlternatives);
+    memset(mMatchRanks, RANK_UNKNOWN, size);
+}
+
+// Returns the rank of the first alternative at the input position that matches a
+// letter, or -1 if none does
+int
+Dictionary::matchRank(unsigned short c, int code, int depth, int inputIndex)
+{
+    if (code == NO_CODE) {
+        return findRank(c, toLowerCase(c, depth), inputIndex);
     }
+    unsigned char *rank = mMatchRanks + (depth == 0 ? 0 : inputIndex + 1) * CODE_COUNT + code;
+    if (*rank == RANK_UNKNOWN) {
+        *rank = findRank(c, depth == 0 ? mCodeFirstLower[code] : mCodeLower[code],
+                inputIndex) + 1;
+    }
+    return *rank - 1;
+}
+
+int
+Dictionary::findRank(unsigned short c, unsigned short lowerC, int inputIndex)
+{
+    int *currentChars = mInputCodes + (inputIndex * mMaxAlternatives);
+    for (int j = 0; j < mMaxAlternatives && currentChars[j] > 0; j++) {
+        if (currentChars[j] == lowerC || currentChars[j] == c) {
+            return j;
+        }
+    }
+    return -1;
+}
+
+// Opens a node for the suggestion search, on top of the stack. Returns false
+// if there is nothing to walk in it.
+bool
+Dictionary::pushFrame(int pos, int depth, bool completion, int snr, int inputIndex,
+        int paradigmScale)
+{
+    // While splitting, the subtree is left for the workers
+    if (mSplitting && mFrameCount > 0) {
+        SearchTask *task = addTask(depth);
+        if (task != NULL) {
+            task->isWord = false;
+            task->pos = pos;
+            task->completion = completion;
+            task->snr = snr;
+            task->inputIndex = inputIndex;
+            task->paradigmScale = paradigmScale;
+        }
+        return false;
+    }
+    // Can only overflow on a malformed dictionary, whose paradigms nest
+    if (mFrameCount == MAX_SEARCH_DEPTH + 2) {
+        return false;
+    }
+    SearchFrame *frame = &mFrames[mFrameCount];
+    frame->remaining = openNode(pos, &frame->it);
+    if (frame->remaining == 0) {
+        return false;
+    }
+    frame->depth = depth;
+    frame->completion = completion;
+    frame->snr = snr;
+    frame->inputIndex = inputIndex;
+    frame->paradigmScale = paradigmScale;
+    mFrameCount++;
+    return true;
+}
+
+// Walks the trie depth first, with an explicit stack rather than recursion, so
+// that long input cannot overflow the thread's stack. Each step takes the next
+// child of the node on top, and pushes that child's children when the search
+// goes on below it.
+void
+Dictionary::getWordsIter(int pos, int maxDepth)
+{
+    mFrameCount = 0;
+    pushFrame(pos, 0, false, 1, 0, 0);
+    walk(maxDepth);
+}
+
+void
+Dictionary::walk(int maxDepth)
+{
+    while (mFrameCount > 0 && !mSplitOverflow) {
+        SearchFrame *frame = &mFrames[mFrameCount - 1];
+        if (frame->remaining == 0) {
+            mFrameCount--;
+            continue;
+        }
+        frame->remaining--;
+        if ((mNodesLeft == 0 && !takeNodes())
+                || ((--mNodesLeft & (CLOCK_INTERVAL - 1)) == 0 && nowMicros() > mDeadline)) {
+            mPartial = true;
+            break;
+        }
+
+        bool terminal;
+        int childrenAddress;
+        int freq;
+        mParadigmScale = frame->paradigmScale;
+        unsigned short c = nextChild(&frame->it, &terminal, &childrenAddress, &freq);
+        if (frame->it.labelLength == 0) {
+            // A paradigm: its suffixes continue the stem, in the same state
+            pushFrame(childrenAddress, frame->depth, frame->completion, frame->snr,
+                    frame->inputIndex, freq);
+            continue;
+        }
+        if (!terminal) freq = 1;
+
+        // The state at the last letter of the entry
+        int d = frame->depth;
+        bool comp = frame->completion;
+        int s = frame->snr;
+        int in = frame->inputIndex;
+        if (frame->it.labelLength > 1) {
+            if (!matchLabel(frame->it.label, frame->it.codes, frame->it.labelLength - 1,
+                    maxDepth, &d, &comp, &s, &in) || d > maxDepth) {
+                continue;
+            }
+            c = frame->it.label[frame->it.labelLength - 1];
+        }
+        int *currentChars = NULL;
+        if (mInputLength <= in) {
+            comp = true;
+        } else {
+            currentChars = mInputCodes + (in * mMaxAlternatives);
+        }
+        // Optimization: Prune out words that are too long compared to how much was typed.
+        bool descend = childrenAddress != 0 && d < maxDepth;
 
-    for (int i = 0; i < count; i++) {
-        unsigned short c = getChar(&pos);
-        unsigned short lowerC = toLowerCase(c, depth);
-        bool terminal = getTerminal(&pos);
-        int childrenAddress = getAddress(&pos);
-        int freq = 1;
-        if (terminal) freq = getFreq(&pos);
         // If we are only doing completions, no need to look at the typed characters.
-        if (completion) {
-            mWord[depth] = c;
+        if (comp) {
+            mWord[d] = c;
             if (terminal) {
-                addWord(mWord, depth + 1, freq * snr);
+                addWord(mWord, d + 1, freq * s);
             }
-            if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth,
-                            completion, snr, inputIndex);
+            if (descend) {
+                pushFrame(childrenAddress, d + 1, comp, s, in, frame->paradigmScale);
             }
         } else if (c == QUOTE && currentChars[0] != QUOTE) {
             // Skip the ' and continue deeper
-            mWord[depth] = QUOTE;
-            if (childrenAddress != 0) {
-                getWordsRec(childrenAddress, depth + 1, maxDepth, false, snr, inputIndex);
+            mWord[d] = QUOTE;
+            if (descend) {
+                pushFrame(childrenAddress, d + 1, false, s, in, frame->paradigmScale);
             }
         } else {
-            int j = 0;
-            while (currentChars[j] > 0) {
-                int addedWeight = j == 0 ? mTypedLetterMultiplier : 1;
-                if (currentChars[j] == lowerC || currentChars[j] == c) {
-                    mWord[depth] = c;
-                    if (mInputLength == inputIndex + 1) {
-                        if (terminal) {
-                            if (//INCLUDE_TYPED_WORD_IF_VALID ||
-                                !sameAsTyped(mWord, depth + 1)) {
-                                addWord(mWord, depth + 1,
-                                    (freq * snr * addedWeight * mFullWordMultiplier));
-                            }
+            // A letter that matches more than one alternative takes the heaviest one
+            int rank = matchRank(c, frame->it.codes[frame->it.labelLength - 1], d, in);
+            if (rank >= 0) {
+                int addedWeight = rank == 0 ? mTypedLetterMultiplier : 1;
+                mWord[d] = c;
+                if (mInputLength == in + 1) {
+                    if (terminal) {
+                        if (mIncludeTyped || !sameAsTyped(mWord, d + 1)) {
+                            addWord(mWord, d + 1,
+                                (freq * s * addedWeight * mFullWordMultiplier));
                         }
-                        if (childrenAddress != 0) {
-                            getWordsRec(childrenAddress, depth + 1,
-                                    maxDepth, true, snr * addedWeight, inputIndex + 1);
-                        }
-                    } else if (childrenAddress != 0) {
-                        getWordsRec(childrenAddress, depth + 1, maxDepth,
-                                false, snr * addedWeight, inputIndex + 1);
                     }
+                    if (descend) {
+                        pushFrame(childrenAddress, d + 1, true, s * addedWeight, in + 1,
+                                frame->paradigmScale);
+                    }
+                } else if (descend) {
+                    pushFrame(childrenAddress, d + 1, false, s * addedWeight, in + 1,
+                            frame->paradigmScale);
                 }
-                j++;
             }
         }
     }
+    mParadigmScale = 0;
+}
+
+// Refills a worker's node budget from the budget of the whole search, a clock
+// interval at a time. Returns false if it has run out.
+bool
+Dictionary::takeNodes()
+{
+    if (mOwner == NULL) {
+        return false;
+    }
+    for (;;) {
+        int left = mOwner->mSharedNodes;
+        if (left == 0) {
+            return false;
+        }
+        int take = left < CLOCK_INTERVAL ? left : CLOCK_INTERVAL;
+        if (__sync_bool_compare_and_swap(&mOwner->mSharedNodes, left, left - take)) {
+            mNodesLeft = take;
+            return true;
+        }
+    }
+}
+
+// Searches that stay within PARALLEL_MIN_NODES nodes are done sequentially; larger
+// ones are split over this many threads, counting the searching thread. Can only be
+// set once.
+void
+Dictionary::setParallelism(int threads)
+{
+    if (mThreadCount > 0 || mRoot < 0 || threads < 2) {
+        return;
+    }
+    if (threads > MAX_THREADS) threads = MAX_THREADS;
+    mTasks = new SearchTask[MAX_TASKS];
+    mNextTasks = new SearchTask[MAX_TASKS];
+    pthread_mutex_init(&mLock, NULL);
+    pthread_cond_init(&mWorkReady, NULL);
+    pthread_cond_init(&mWorkDone, NULL);
+    mGeneration = 0;
+    mBusyWorkers = 0;
+    mQuit = false;
+    mWorkers = new Dictionary*[threads];
+    for (int i = 0; i < threads; i++) {
+        mWorkers[i] = new Dictionary(this);
+    }
+    mThreads = new pthread_t[threads - 1];
+    int started = 1;
+    while (started < threads
+            && pthread_create(&mThreads[started - 1], NULL, serveThread, mWorkers[started]) == 0) {
+        started++;
+    }
+    for (int i = started; i < threads; i++) {
+        delete mWorkers[i];
+    }
+    mThreadCount = started;
+}
+
+void *
+Dictionary::serveThread(void *worker)
+{
+    ((Dictionary *) worker)->serve();
+    return NULL;
+}
+
+// A worker thread: runs the tasks of each parallel search of the owner
+void
+Dictionary::serve()
+{
+    int generation = 0;
+    for (;;) {
+        pthread_mutex_lock(&mOwner->mLock);
+        while (mOwner->mGeneration == generation && !mOwner->mQuit) {
+            pthread_cond_wait(&mOwner->mWorkReady, &mOwner->mLock);
+        }
+        if (mOwner->mQuit) {
+            pthread_mutex_unlock(&mOwner->mLock);
+            return;
+        }
+        generation = mOwner->mGeneration;
+        pthread_mutex_unlock(&mOwner->mLock);
+
+        runTasks();
+
+        pthread_mutex_lock(&mOwner->mLock);
+        if (--mOwner->mBusyWorkers == 0) {
+            pthread_cond_signal(&mOwner->mWorkDone);
+        }
+        pthread_mutex_unlock(&mOwner->mLock);
+    }
+}
+
+// Splits the search into subtrees, which the workers take in depth first order.
+// Each worker keeps the best words it finds, with the subtree they were found in,
+// and skips words below the worst of the best words that any worker has, as they
+// cannot be among the best of all. The words are then ranked by frequency, length
+// and the order the sequential search would have found them in, as addWord() does,
+// so that the results are the same.
+void
+Dictionary::getWordsParallel(int maxDepth)
+{
+    splitSearch(maxDepth, mThreadCount * TASKS_PER_THREAD);
+    if (mPartial) {
+        mergeResults(false);
+        return;
+    }
+    mMaxDepth = maxDepth;
+    mNextTask = 0;
+    mSharedBound = 0;
+    mSharedNodes = mNodesLeft;
+    for (int i = 0; i < mThreadCount; i++) {
+        mWorkers[i]->beginWork();
+    }
+    pthread_mutex_lock(&mLock);
+    mBusyWorkers = mThreadCount - 1;
+    mGeneration++;
+    pthread_cond_broadcast(&mWorkReady);
+    pthread_mutex_unlock(&mLock);
+
+    mWorkers[0]->runTasks();
+
+    pthread_mutex_lock(&mLock);
+    while (mBusyWorkers > 0) {
+        pthread_cond_wait(&mWorkDone, &mLock);
+    }
+    pthread_mutex_unlock(&mLock);
+    mNodesLeft = mSharedNodes;
+    for (int i = 0; i < mThreadCount; i++) {
+        mNodesLeft += mWorkers[i]->mNodesLeft;
+        mPartial |= mWorkers[i]->mPartial;
+    }
+    mergeResults(true);
+}
+
+// Expands the top of the trie a level at a time, until there are at least target
+// subtrees or MAX_SPLIT_LEVELS levels are done. Words and subtrees are kept in the
+// order the sequential search meets them; a level that does not fit is dropped.
+void
+Dictionary::splitSearch(int maxDepth, int target)
+{
+    SearchTask *root = &mTasks[0];
+    root->isWord = false;
+    root->length = 0;
+    root->pos = mRoot;
+    root->completion = false;
+    root->snr = 1;
+    root->inputIndex = 0;
+    root->paradigmScale = 0;
+    mTaskCount = 1;
+    mSplitting = true;
+    for (int level = 0; level < MAX_SPLIT_LEVELS; level++) {
+        int subtrees = 0;
+        for (int i = 0; i < mTaskCount; i++) {
+            if (!mTasks[i].isWord) subtrees++;
+        }
+        if (subtrees == 0 || subtrees >= target) {
+            break;
+        }
+        mNextTaskCount = 0;
+        mSplitOverflow = false;
+        for (int i = 0; i < mTaskCount && !mSplitOverflow && !mPartial; i++) {
+            SearchTask *task = &mTasks[i];
+            if (task->isWord) {
+                SearchTask *next = addTask(task->length);
+                if (next != NULL) {
+                    *next = *task;
+                }
+                continue;
+            }
+            memcpy(mWord, task->word, task->length * sizeof(mWord[0]));
+            mFrameCount = 0;
+            pushFrame(task->pos, task->length, task->completion, task->snr,
+                    task->inputIndex, task->paradigmScale);
+            walk(maxDepth);
+        }
+        if (mSplitOverflow || mPartial) {
+            break;
+        }
+        SearchTask *tasks = mTasks;
+        mTasks = mNextTasks;
+        mNextTasks = tasks;
+        mTaskCount = mNextTaskCount;
+    }
+    mSplitOverflow = false;
+    mSplitting = false;
+}
+
+// Appends a word or subtree to the next level of the split search, with the
+// letters found so far
+SearchTask *
+Dictionary::addTask(int length)
+{
+    if (mNextTaskCount == MAX_TASKS || length > MAX_TASK_DEPTH) {
+        mSplitOverflow = true;
+        return NULL;
+    }
+    SearchTask *task = &mNextTasks[mNextTaskCount++];
+    memcpy(task->word, mWord, length * sizeof(mWord[0]));
+    task->length = length;
+    return task;
+}
+
+// Readies a worker for a search of its owner
+void
+Dictionary::beginWork()
+{
+    Dictionary *owner = mOwner;
+    mInputCodes = owner->mInputCodes;
+    mInputLength = owner->mInputLength;
+    mIncludeTyped = owner->mIncludeTyped;
+    mMaxAlternatives = owner->mMaxAlternatives;
+    mMaxWordLength = owner->mMaxWordLength;
+    mMaxWords = owner->mMaxWords;
+    mMaxDepth = owner->mMaxDepth;
+    mDeadline = owner->mDeadline;
+    if (mMaxWords != mOwnMaxWords || mMaxWordLength != mOwnMaxWordLength) {
+        delete[] mOwnFrequencies;
+        delete[] mOwnOutputChars;
+        delete[] mOutputKeys;
+        mOwnFrequencies = new int[mMaxWords];
+        mOwnOutputChars = new unsigned short[mMaxWords * mMaxWordLength];
+        mOutputKeys = new int[mMaxWords];
+        mOwnMaxWords = mMaxWords;
+        mOwnMaxWordLength = mMaxWordLength;
+    }
+    memset(mOwnFrequencies, 0, mMaxWords * sizeof(*mOwnFrequencies));
+    memset(mOwnOutputChars, 0, mMaxWords * mMaxWordLength * sizeof(*mOwnOutputChars));
+    mFrequencies = mOwnFrequencies;
+    mOutputChars = mOwnOutputChars;
+    mWords = 0;
+    mNodesLeft = 0;
+    mPartial = false;
+    clearMatchRanks();
+}
+
+// Searches the owner's subtrees, taking the next one left until none are, or the
+// budget runs out
+void
+Dictionary::runTasks()
+{
+    for (;;) {
+        int next = __sync_fetch_and_add(&mOwner->mNextTask, 1);
+        if (next >= mOwner->mTaskCount || mPartial) {
+            return;
+        }
+        SearchTask *task = &mOwner->mTasks[next];
+        if (task->isWord) {
+            continue;
+        }
+        memcpy(mWord, task->word, task->length * sizeof(mWord[0]));
+        mCurrentKey = next;
+        mFrameCount = 0;
+        pushFrame(task->pos, task->length, task->completion, task->snr,
+                task->inputIndex, task->paradigmScale);
+        walk(mMaxDepth);
+    }
+}
+
+// Raises the frequency below which words are skipped, once a worker has a full
+// list of words of at least that frequency
+void
+Dictionary::raiseBound(int freq)
+{
+    for (;;) {
+        int bound = mSharedBound;
+        if (freq <= bound || __sync_bool_compare_and_swap(&mSharedBound, bound, freq)) {
+            return;
+        }
+    }
+}
+
+struct Candidate {
+    int freq;
+    int length;
+    int key;    // the task it was found in
+    int order;  // among those found in the same task
+    unsigned short *word;
+};
+
+static int
+compareCandidates(const void *a, const void *b)
+{
+    const Candidate *x = (const Candidate *) a;
+    const Candidate *y = (const Candidate *) b;
+    if (x->freq != y->freq) return x->freq > y->freq ? -1 : 1;
+    if (x->length != y->length) return x->length - y->length;
+    if (x->key != y->key) return x->key - y->key;
+    return x->order - y->order;
+}
+
+// Merges the words found while splitting with those the workers found, if they
+// searched, into the output
+void
+Dictionary::mergeResults(bool searched)
+{
+    Candidate *candidates = new Candidate[mTaskCount + (searched ? mThreadCount * mMaxWords : 0)];
+    int count = 0;
+    for (int i = 0; i < mTaskCount; i++) {
+        SearchTask *task = &mTasks[i];
+        if (task->isWord && task->freq > 0) {
+            Candidate *candidate = &candidates[count++];
+            candidate->freq = task->freq;
+            candidate->length = task->length;
+            candidate->key = i;
+            candidate->order = 0;
+            candidate->word = task->word;
+        }
+    }
+    for (int w = 0; searched && w < mThreadCount; w++) {
+        Dictionary *worker = mWorkers[w];
+        for (int i = 0; i < worker->mWords; i++) {
+            Candidate *candidate = &candidates[count++];
+            candidate->freq = worker->mFrequencies[i];
+            candidate->word = worker->mOutputChars + i * mMaxWordLength;
+            candidate->length = wideStrLen(candidate->word);
+            candidate->key = worker->mOutputKeys[i];
+            candidate->order = i;
+        }
+    }
+    qsort(candidates, count, sizeof(Candidate), compareCandidates);
+    mWords = count < mMaxWords ? count : mMaxWords;
+    for (int i = 0; i < mWords; i++) {
+        mFrequencies[i] = candidates[i].freq;
+        memcpy(mOutputChars + i * mMaxWordLength, candidates[i].word,
+                candidates[i].length * sizeof(mOutputChars[0]));
+    }
+    delete[] candidates;
+}
+
+// Matches leading letters of a path compressed label in one loop, updating the
+// search state as getWordsIter would for a chain of single children; as no words
+// end inside a label, there is nothing to add on the way. A letter that matches
+// more than one alternative takes the heaviest one only.
+bool
+Dictionary::matchLabel(unsigned short *label, short *codes, int length, int maxDepth, int *depth,
+        bool *completion, int *snr, int *inputIndex)
+{
+    for (int k = 0; k < length; k++, (*depth)++) {
+        if (*depth > maxDepth) {
+            return false;
+        }
+        unsigned short c = label[k];
+        mWord[*depth] = c;
+        if (*completion || mInputLength <= *inputIndex) {
+            *completion = true;
+            continue;
+        }
+        int *currentChars = mInputCodes + (*inputIndex * mMaxAlternatives);
+        if (c == QUOTE && currentChars[0] != QUOTE) {
+            continue;
+        }
+        int rank = matchRank(c, codes[k], *depth, *inputIndex);
+        if (rank < 0) {
+            return false;
+        }
+        *snr *= rank == 0 ? mTypedLetterMultiplier : 1;
+        (*inputIndex)++;
+    }
+    return true;
 }
 
 bool
 Dictionary::isValidWord(unsigned short *word, int length)
 {
-    return isValidWordRec(0, word, 0, length);
+    if (mRoot < 0) return false;
+    return isValidWordRec(mRoot, word, 0, length);
 }
 
 bool
 Dictionary::isValidWordRec(int pos, unsigned short *word, int offset, int length) {
-    int count = getCount(&pos);
+    ChildIterator it;
+    int count = openNode(pos, &it);
     unsigned short currentChar = (unsigned short) word[offset];
     for (int j = 0; j < count; j++) {
-        unsigned short c = getChar(&pos);
-        int terminal = getTerminal(&pos);
-        int childPos = getAddress(&pos);
-        if (c == currentChar) {
-            if (offset == length - 1) {
+        bool terminal;
+        int childPos;
+        int freq;
+        unsigned short c = nextChild(&it, &terminal, &childPos, &freq);
+        if (it.labelLength == 0) {
+            // Suffixes are never empty, so a paradigm can only match more letters
+            if (isValidWordRec(childPos, word, offset, length)) {
+                return true;
+            }
+            continue;
+        }
+        if (c == currentChar && offset + it.labelLength <= length) {
+            // The rest of a path compressed label must match too
+            int k = 1;
+            while (k < it.labelLength && it.label[k] == word[offset + k]) {
+                k++;
+            }
+            if (k < it.labelLength) {
+                continue;
+            }
+            int last = offset + it.labelLength - 1;
+            if (last == length - 1) {
                 if (terminal) {
                     return true;
                 }
             } else {
                 if (childPos != 0) {
-                    if (isValidWordRec(childPos, word, offset + 1, length)) {
+                    if (isValidWordRec(childPos, word, last + 1, length)) {
                         return true;
                     }
                 }
             }
         }
-        if (terminal) {
-            getFreq(&pos);
-        }
         // There could be two instances of each alphabet - upper and lower case. So continue
         // looking ...
     }
     return false;
 }
 
+void
+Dictionary::getPrefixFrequencies(unsigned short *word, int length, int *frequencies,
+        unsigned short *outWords, int maxWordLength)
+{
+    memset(frequencies, 0, length * sizeof(*frequencies));
+    memset(outWords, 0, length * maxWordLength * sizeof(*outWords));
+
+    mPrefixInput = word;
+    mPrefixLength = length;
+    mFrequencies = frequencies;
+    mOutputChars = outWords;
+    mMaxWordLength = maxWordLength;
+
+    if (mRoot < 0) return;
+    getPrefixFrequenciesRec(mRoot, 0);
+}
+
+static unsigned short FINAL_SIGMA = 0x03C2;
+static unsigned short SIGMA = 0x03C3;
+
+unsigned short
+Dictionary::foldLetter(unsigned short c)
+{
+    c = toLowerCase(c, 0);
+    return c == FINAL_SIGMA ? SIGMA : c;
+}
+
+// Single walk down the trie along the typed word; every word that is a prefix of it
+// is found on the way.  Accents, case and final sigma are ignored, so more than one
+// path may match.
+void
+Dictionary::getPrefixFrequenciesRec(int pos, int depth)
+{
+    ChildIterator it;
+    int count = openNode(pos, &it);
+    for (int i = 0; i < count; i++) {
+        bool terminal;
+        int childrenAddress;
+        int freq;
+        nextChild(&it, &terminal, &childrenAddress, &freq);
+        if (it.labelLength == 0) {
+            mParadigmScale = freq;
+            getPrefixFrequenciesRec(childrenAddress, depth);
+            mParadigmScale = 0;
+            continue;
+        }
+        // All letters of the entry must match, within the typed word
+        int last = depth + it.labelLength - 1;
+        if (last >= mPrefixLength) {
+            continue;
+        }
+        int k = 0;
+        while (k < it.labelLength
+                && foldLetter(it.label[k]) == foldLetter(mPrefixInput[depth + k])) {
+            mWord[depth + k] = it.label[k];
+            k++;
+        }
+        if (k < it.labelLength) {
+            continue;
+        }
+        if (terminal && freq > mFrequencies[last]) {
+            mFrequencies[last] = freq;
+            unsigned short *dest = mOutputChars + last * mMaxWordLength;
+            for (int j = 0; j <= last; j++) {
+                *dest++ = mWord[j];
+            }
+        }
+        if (childrenAddress != 0 && last + 1 < mPrefixLength) {
+            getPrefixFrequenciesRec(childrenAddress, last + 1);
+        }
+    }
+}
+// Lists all words with at least the given frequency, in trie order, and counts
+// all words by frequency.  Used to build indexes over the dictionary in Java.
+int
+Dictionary::enumerateWords(int minFreq, unsigned short *outWords, int *frequencies,
+        int maxWordLength, int maxWords, int *histogram)
+{
+    if (histogram) {
+        memset(histogram, 0, 256 * sizeof(*histogram));
+    }
+    mMinFreq = minFreq;
+    mOutputChars = outWords;
+    mFrequencies = frequencies;
+    mMaxWordLength = maxWordLength;
+    mMaxWords = maxWords;
+    mHistogram = histogram;
+    mWords = 0;
+
+    if (mRoot < 0) return 0;
+    enumerateWordsRec(mRoot, 0);
+    return mWords;
+}
+
+void
+Dictionary::enumerateWordsRec(int pos, int depth)
+{
+    if (depth >= (int) (sizeof(mWord) / sizeof(mWord[0]))) {
+        return;
+    }
+    ChildIterator it;
+    int count = openNode(pos, &it);
+    for (int i = 0; i < count; i++) {
+        bool terminal;
+        int childrenAddress;
+        int freq;
+        nextChild(&it, &terminal, &childrenAddress, &freq);
+        if (it.labelLength == 0) {
+            mParadigmScale = freq;
+            enumerateWordsRec(childrenAddress, depth);
+            mParadigmScale = 0;
+            continue;
+        }
+        int last = depth + it.labelLength - 1;
+        if (last >= (int) (sizeof(mWord) / sizeof(mWord[0]))) {
+            continue;
+        }
+        for (int k = 0; k < it.labelLength; k++) {
+            mWord[depth + k] = it.label[k];
+        }
+        if (terminal) {
+            if (mHistogram) {
+                mHistogram[freq]++;
+            }
+            if (freq >= mMinFreq && mWords < mMaxWords && last + 1 < mMaxWordLength) {
+                unsigned short *dest = mOutputChars + mWords * mMaxWordLength;
+                for (int j = 0; j <= last; j++) {
+                    *dest++ = mWord[j];
+                }
+                *dest = 0;
+                mFrequencies[mWords++] = freq;
+            }
+        }
+        if (childrenAddress != 0) {
+            enumerateWordsRec(childrenAddress, last + 1);
+        }
+    }
+}
+
+// Reads every node of the top levels of the trie, which nearly every search
+// goes through, so that the first searches do not wait for them to be paged in
+// or cached.  Returns the number of nodes read.
+int
+Dictionary::warmUp(int levels)
+{
+    if (mRoot < 0) return 0;
+    return warmUpRec(mRoot, levels);
+}
+
+int
+Dictionary::warmUpRec(int pos, int levels)
+{
+    ChildIterator it;
+    int count = openNode(pos, &it);
+    int nodes = count;
+    for (int i = 0; i < count; i++) {
+        bool terminal;
+        int childrenAddress;
+        int freq;
+        nextChild(&it, &terminal, &childrenAddress, &freq);
+        // Paradigm suffixes hang off the stem, one level further down
+        if (childrenAddress != 0 && levels > 1) {
+            nodes += warmUpRec(childrenAddress, levels - 1);
+        }
+    }
+    return nodes;
+}
 
 } // namespace greekim
@@ -17,10 +17,21 @@
 #ifndef LATINIME_DICTIONARY_H
 #define LATINIME_DICTIONARY_H
 
+#include <pthread.h>
+
 namespace greekim {
 
 // 22-bit address = ~4MB dictionary size limit, which on average would be about 200k-300k words
 #define ADDRESS_MASK 0x3FFFFF
+// Address flags with all six address bits set mark a wide entry: the next four bytes
+// hold a 32-bit address. Only nodes past the first ~4MB need one.
+#define WIDE_ADDRESS_MARK 0x3F
+
+// Dictionaries from version 1 on start with a header: "GDIC", the version, feature
+// flags and two reserved bytes. The root node follows it.
+#define DICT_MAGIC 0x47444943
+#define DICT_VERSION 2
+#define DICT_HEADER_SIZE 8
 
 // The bit that decides if an address follows in the next 22 bits
 #define FLAG_ADDRESS_MASK 0x40
@@ -28,35 +39,176 @@ namespace greekim {
 // if the word has other endings.
 #define FLAG_TERMINAL_MASK 0x80
 
+// Escape byte for a path compressed entry: a length byte follows, then that many
+// letters, all on a chain of single children ending at the entry's node
+#define LABEL_ESCAPE 0xAE
+#define MAX_LABEL_LENGTH 16
+
+// Escape byte for a paradigm entry (version 2 on): it has no letters, its address is
+// the suffix trie of an inflection paradigm, shared by all stems that use it, and its
+// frequency byte scales the frequencies (out of 255) of the suffixes to the stem's
+#define PARADIGM_ESCAPE 0xD2
+
+// First four bytes of a LOUDS encoded dictionary ("GLDS"); see dict/el/trie.py
+#define LOUDS_MAGIC 0x474C4453
+// Bits per entry of the LOUDS rank directories
+#define RANK_BLOCK_BITS 64
+// Zeros per entry of the LOUDS select directory
+#define SELECT_SAMPLE_ZEROS 256
+
+// Letters are also known by a one byte code: their ISO 8859-7 code in the classic
+// format, and their alphabet index in the LOUDS format. Letters escaped as 16-bit
+// characters have none.
+#define CODE_COUNT 256
+#define NO_CODE -1
+#define RANK_UNKNOWN 0xFF
+
+// Walks the children of a node, in either format
+struct ChildIterator {
+    int pos;        // next child: byte address, or its LOUDS run position
+    int node;       // LOUDS only: number of the next child
+    int freqIndex;  // LOUDS only: number of terminal nodes before it
+    // Letters of the last child returned; more than one for path compressed entries,
+    // none for paradigm entries
+    unsigned short label[MAX_LABEL_LENGTH];
+    short codes[MAX_LABEL_LENGTH];
+    int labelLength;
+};
+
+// Deepest letter the suggestion search goes to
+#define MAX_SEARCH_DEPTH 127
+// Nodes visited between looks at the clock; a power of two
+#define CLOCK_INTERVAL 256
+
+// One node on the suggestion search stack, with the search state at it
+struct SearchFrame {
+    ChildIterator it;
+    int remaining;      // children not walked yet
+    int depth;
+    bool completion;
+    int snr;
+    int inputIndex;
+    int paradigmScale;  // of the paradigm suffix trie the node is in, or 0
+};
+
+// Parallel search: searches that visit more than PARALLEL_MIN_NODES nodes are split
+// into up to MAX_TASKS subtrees, by expanding at most MAX_SPLIT_LEVELS levels of the
+// trie until there are TASKS_PER_THREAD per thread
+#define MAX_THREADS 4
+#define PARALLEL_MIN_NODES 4096
+#define MAX_TASKS 256
+#define MAX_SPLIT_LEVELS 3
+#define TASKS_PER_THREAD 8
+#define MAX_TASK_DEPTH (MAX_SPLIT_LEVELS * MAX_LABEL_LENGTH)
+
+// A subtree left for a worker to search, with the search state at it, or a word
+// found while splitting the search
+struct SearchTask {
+    bool isWord;
+    unsigned short word[MAX_TASK_DEPTH];  // the word, or the letters above the subtree
+    int length;
+    int freq;           // words only
+    int pos;            // subtrees only; this and the rest as in SearchFrame
+    bool completion;
+    int snr;
+    int inputIndex;
+    int paradigmScale;
+};
+
 class Dictionary {
 public:
     Dictionary(unsigned char *dict, int typedLetterMultipler, int fullWordMultiplier);
     int getSuggestions(int *codes, int codesSize, unsigned short *outWords, int *frequencies,
-        int maxWordLength, int maxWords, int maxAlternatives);
+        int maxWordLength, int maxWords, int maxAlternatives, int maxNodes, int maxMicros,
+        bool includeTyped = false);
+    // Nodes visited by the last getSuggestions(), and whether it ran out of budget
+    // before the search was complete
+    int getNodesVisited() { return mMaxNodes - mNodesLeft; }
+    bool isPartial() { return mPartial; }
+    void setParallelism(int threads);
     bool isValidWord(unsigned short *word, int length);
+    void getPrefixFrequencies(unsigned short *word, int length, int *frequencies,
+        unsigned short *outWords, int maxWordLength);
+    int enumerateWords(int minFreq, unsigned short *outWords, int *frequencies,
+        int maxWordLength, int maxWords, int *histogram);
+    int warmUp(int levels);
     void setAsset(void *asset) { mAsset = asset; }
     void *getAsset() { return mAsset; }
+    // False if the dictionary is in a format version we can't read
+    bool isValid() { return mRoot >= 0; }
     unsigned char *getDictBuffer() { return mDict; }
     ~Dictionary();
 
 private:
+    Dictionary(Dictionary *owner);
+    void initSearchState();
+
+    // Node access, for either format. A node's address is a byte offset in the
+    // classic format, and the position of its run of structure bits in the LOUDS
+    // format; 0 is the root and, as a children address, means no children.
+    int openNode(int address, ChildIterator *it);
+    unsigned short nextChild(ChildIterator *it, bool *terminal, int *childrenAddress, int *freq);
+
+    void initLouds();
+    int getBit(unsigned char *bits, int i) { return (bits[i >> 3] << (i & 7)) & 0x80; }
+    int rank1(unsigned char *bits, int *ranks, int i);
+    int select0(int k);
+    static int *buildRanks(unsigned char *bits, int length);
 
     int getAddress(int *pos);
     bool getTerminal(int *pos) { return (mDict[*pos] & FLAG_TERMINAL_MASK) > 0; }
     int getFreq(int *pos) { return mDict[(*pos)++] & 0xFF; }
     int getCount(int *pos) { return mDict[(*pos)++] & 0xFF; }
-    unsigned short getChar(int *pos);
+    unsigned short getChar(int *pos, short *code);
     int wideStrLen(unsigned short *str);
+    int scaleFreq(int freq);
 
     bool sameAsTyped(unsigned short *word, int length);
     bool addWord(unsigned short *word, int length, int frequency);
     unsigned short toLowerCase(unsigned short c, int depth);
-    void getWordsRec(int pos, int depth, int maxDepth, bool completion, int frequency,
-            int inputIndex);
+    unsigned short foldLetter(unsigned short c);
+    void setCodeChars(unsigned short *chars, int count);
+    void clearMatchRanks();
+    int matchRank(unsigned short c, int code, int depth, int inputIndex);
+    int findRank(unsigned short c, unsigned short lowerC, int inputIndex);
+    void getWordsIter(int pos, int maxDepth);
+    void walk(int maxDepth);
+    bool pushFrame(int pos, int depth, bool completion, int snr, int inputIndex,
+            int paradigmScale);
+    bool takeNodes();
+
+    void getWordsParallel(int maxDepth);
+    void splitSearch(int maxDepth, int target);
+    SearchTask *addTask(int length);
+    void beginWork();
+    void runTasks();
+    void serve();
+    static void *serveThread(void *worker);
+    void raiseBound(int freq);
+    void mergeResults(bool searched);
+    bool matchLabel(unsigned short *label, short *codes, int length, int maxDepth, int *depth,
+            bool *completion, int *snr, int *inputIndex);
     bool isValidWordRec(int pos, unsigned short *word, int offset, int length);
+    void getPrefixFrequenciesRec(int pos, int depth);
+    void enumerateWordsRec(int pos, int depth);
+    int warmUpRec(int pos, int levels);
 
     unsigned char *mDict;
     void *mAsset;
+    int mRoot;
+    // Scale of the paradigm whose suffix trie is being walked, or 0; paradigms don't nest
+    int mParadigmScale;
+
+    bool mLouds;
+    int mNodeCount;
+    unsigned short *mAlphabet;
+    unsigned char *mStructure;
+    unsigned char *mTerminals;
+    unsigned char *mLabels;
+    unsigned char *mLoudsFreqs;
+    int *mStructureRanks;
+    int *mTerminalRanks;
+    int *mSelectSamples;
 
     int *mFrequencies;
     int mMaxWords;
@@ -65,8 +217,72 @@ private:
     unsigned short *mOutputChars;
     int *mInputCodes;
     int mInputLength;
+    // Whether a word spelled exactly as the primary codes is suggested too, as when
+    // the codes are a reading of other letters rather than what was typed
+    bool mIncludeTyped;
     int mMaxAlternatives;
-    unsigned short mWord[128];
+    unsigned short mWord[MAX_SEARCH_DEPTH + 1];
+    // Depths 0 to MAX_SEARCH_DEPTH, and a paradigm (which doesn't nest)
+    SearchFrame mFrames[MAX_SEARCH_DEPTH + 2];
+    int mFrameCount;
+
+    // Search budget: nodes still to visit, and the deadline in microseconds of the
+    // monotonic clock, checked every CLOCK_INTERVAL nodes
+    int mMaxNodes;
+    int mNodesLeft;
+    long long mDeadline;
+    bool mPartial;
+
+    // Parallel search. Workers are copies of the dictionary that share its tables,
+    // the first of them run by the searching thread.
+    Dictionary *mOwner;         // of a worker
+    int mThreadCount;
+    Dictionary **mWorkers;
+    pthread_t *mThreads;
+    pthread_mutex_t mLock;
+    pthread_cond_t mWorkReady;
+    pthread_cond_t mWorkDone;
+    int mGeneration;
+    int mBusyWorkers;
+    bool mQuit;
+    int mMaxDepth;
+    // Words and subtrees of the split search, in depth first order, and the next
+    // level of them while splitting
+    SearchTask *mTasks;
+    int mTaskCount;
+    SearchTask *mNextTasks;
+    int mNextTaskCount;
+    bool mSplitting;
+    bool mSplitOverflow;
+    volatile int mNextTask;
+    volatile int mSharedNodes;
+    // Lowest frequency that can still be among the best words
+    volatile int mSharedBound;
+    // A worker's best words, and the subtree each was found in
+    int *mOwnFrequencies;
+    unsigned short *mOwnOutputChars;
+    int *mOutputKeys;
+    int mOwnMaxWords;
+    int mOwnMaxWordLength;
+    int mCurrentKey;
+
+    // Letter of each code, and the same folded as toLowerCase() does for the first
+    // letter of a word and for the rest
+    unsigned short mCodeChars[CODE_COUNT];
+    unsigned short mCodeFirstLower[CODE_COUNT];
+    unsigned short mCodeLower[CODE_COUNT];
+    // One table per input position, giving for each code the rank plus one of the
+    // first alternative that matches it, 0 if none does, or RANK_UNKNOWN until first
+    // needed. The first table is for the first letter of words, where case is ignored
+    // too; input position i has table i + 1.
+    unsigned char *mMatchRanks;
+    int mMatchRanksSize;
+
+    unsigned short *mPrefixInput;
+    int mPrefixLength;
+
+    int mMinFreq;
+    int *mHistogram;
 
     int mFullWordMultiplier;
     int mTypedLetterMultiplier;
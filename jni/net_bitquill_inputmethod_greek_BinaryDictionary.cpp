@@ -24,6 +24,7 @@
 #include <assert.h>
 #include <unistd.h>
 #include <fcntl.h>
+#include <sys/mman.h>
 
 #include "dictionary.h"
 
@@ -31,6 +32,12 @@ using namespace greekim;
 
 static jfieldID sDescriptorField;
 
+// A dictionary mapped from its file, kept as the dictionary's asset to be unmapped
+struct Mapping {
+    void *address;
+    size_t length;
+};
+
 //
 // helper function to throw an exception
 //
@@ -51,23 +58,49 @@ static jint greekim_BinaryDictionary_open
 {
     jint fd = env->GetIntField(fileDescriptor, sDescriptorField);
 
-    unsigned char *dict = new unsigned char[length];
-    if (dict == NULL) {
-        fprintf(stderr, "DICT: Failed to allocate dictionary buffer\n");
-        return 0;
-    }
-
-    lseek(fd, offset, SEEK_SET);
-    size_t bytesLeft = length;
-    unsigned char *p = dict;
-    while (bytesLeft > 0) {
-        size_t bytesRead = read(fd, p, bytesLeft);
-        p += bytesRead;
-        bytesLeft -= bytesRead;
+    // Map the file where we can: its pages are then shared with the page cache,
+    // and can be dropped and read again under memory pressure
+    Mapping *mapping = NULL;
+    unsigned char *dict;
+    off_t pageOffset = offset & ~((off_t) sysconf(_SC_PAGESIZE) - 1);
+    size_t mapLength = length + (offset - pageOffset);
+    void *address = mmap(NULL, mapLength, PROT_READ, MAP_PRIVATE, fd, pageOffset);
+    if (address != MAP_FAILED) {
+        mapping = new Mapping;
+        mapping->address = address;
+        mapping->length = mapLength;
+        dict = (unsigned char *) address + (offset - pageOffset);
+    } else {
+        dict = new unsigned char[length];
+        if (dict == NULL) {
+            fprintf(stderr, "DICT: Failed to allocate dictionary buffer\n");
+            return 0;
+        }
+
+        lseek(fd, offset, SEEK_SET);
+        size_t bytesLeft = length;
+        unsigned char *p = dict;
+        while (bytesLeft > 0) {
+            size_t bytesRead = read(fd, p, bytesLeft);
+            p += bytesRead;
+            bytesLeft -= bytesRead;
+        }
     }
     // FIXME check: need to close fd?
 
     Dictionary *dictionary = new Dictionary(dict, typedLetterMultiplier, fullWordMultiplier);
+    if (!dictionary->isValid()) {
+        fprintf(stderr, "DICT: Unsupported dictionary version\n");
+        delete dictionary;
+        if (mapping != NULL) {
+            munmap(mapping->address, mapping->length);
+            delete mapping;
+        } else {
+            delete[] dict;
+        }
+        return 0;
+    }
+    dictionary->setAsset(mapping);
 
     return (jint) dictionary;
 }
@@ -75,7 +108,8 @@ static jint greekim_BinaryDictionary_open
 static int greekim_BinaryDictionary_getSuggestions(
         JNIEnv *env, jobject object, jint dict, jintArray inputArray, jint arraySize,
         jcharArray outputArray, jintArray frequencyArray, jint maxWordLength, jint maxWords,
-        jint maxAlternatives)
+        jint maxAlternatives, jint maxNodes, jint maxMicros, jboolean includeTyped,
+        jintArray statsArray)
 {
     Dictionary *dictionary = (Dictionary*) dict;
     if (dictionary == NULL)
@@ -86,7 +120,11 @@ static int greekim_BinaryDictionary_getSuggestions(
     jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
 
     int count = dictionary->getSuggestions(inputCodes, arraySize, (unsigned short*) outputChars, frequencies,
-            maxWordLength, maxWords, maxAlternatives);
+            maxWordLength, maxWords, maxAlternatives, maxNodes, maxMicros, includeTyped);
+
+    // Nodes visited, and whether the budget ran out
+    jint stats[2] = { dictionary->getNodesVisited(), dictionary->isPartial() ? 1 : 0 };
+    env->SetIntArrayRegion(statsArray, 0, 2, stats);
 
     env->ReleaseIntArrayElements(frequencyArray, frequencies, JNI_COMMIT);
     env->ReleaseIntArrayElements(inputArray, inputCodes, JNI_ABORT);
@@ -108,12 +146,79 @@ static jboolean greekim_BinaryDictionary_isValidWord
     return result;
 }
 
+static void greekim_BinaryDictionary_getPrefixFrequencies
+        (JNIEnv *env, jobject object, jint dict, jcharArray wordArray, jint wordLength,
+         jintArray frequencyArray, jcharArray outputArray, jint maxWordLength)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return;
+
+    jchar *word = env->GetCharArrayElements(wordArray, NULL);
+    int *frequencies = env->GetIntArrayElements(frequencyArray, NULL);
+    jchar *outputChars = env->GetCharArrayElements(outputArray, NULL);
+
+    dictionary->getPrefixFrequencies((unsigned short*) word, wordLength, frequencies,
+            (unsigned short*) outputChars, maxWordLength);
+
+    env->ReleaseCharArrayElements(wordArray, word, JNI_ABORT);
+    env->ReleaseIntArrayElements(frequencyArray, frequencies, JNI_COMMIT);
+    env->ReleaseCharArrayElements(outputArray, outputChars, JNI_COMMIT);
+}
+
+static jint greekim_BinaryDictionary_enumerateWords
+        (JNIEnv *env, jobject object, jint dict, jint minFreq, jcharArray outputArray,
+         jintArray frequencyArray, jint maxWordLength, jint maxWords, jintArray histogramArray)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return 0;
+
+    jchar *outputChars = outputArray != NULL
+            ? env->GetCharArrayElements(outputArray, NULL) : NULL;
+    int *frequencies = frequencyArray != NULL
+            ? env->GetIntArrayElements(frequencyArray, NULL) : NULL;
+    int *histogram = histogramArray != NULL
+            ? env->GetIntArrayElements(histogramArray, NULL) : NULL;
+
+    int count = dictionary->enumerateWords(minFreq, (unsigned short*) outputChars, frequencies,
+            maxWordLength, outputChars != NULL ? maxWords : 0, histogram);
+
+    if (outputChars) env->ReleaseCharArrayElements(outputArray, outputChars, JNI_COMMIT);
+    if (frequencies) env->ReleaseIntArrayElements(frequencyArray, frequencies, JNI_COMMIT);
+    if (histogram) env->ReleaseIntArrayElements(histogramArray, histogram, JNI_COMMIT);
+
+    return count;
+}
+
+static void greekim_BinaryDictionary_setParallelism
+        (JNIEnv *env, jobject object, jint dict, jint threads)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return;
+
+    dictionary->setParallelism(threads);
+}
+
+static jint greekim_BinaryDictionary_warmUp
+        (JNIEnv *env, jobject object, jint dict, jint levels)
+{
+    Dictionary *dictionary = (Dictionary*) dict;
+    if (dictionary == NULL) return 0;
+
+    return dictionary->warmUp(levels);
+}
+
 static void greekim_BinaryDictionary_close
         (JNIEnv *env, jobject object, jint dict)
 {
     Dictionary *dictionary = (Dictionary*) dict;
-    delete dictionary->getDictBuffer();
-    delete (Dictionary*) dict;
+    Mapping *mapping = (Mapping*) dictionary->getAsset();
+    if (mapping != NULL) {
+        munmap(mapping->address, mapping->length);
+        delete mapping;
+    } else {
+        delete[] dictionary->getDictBuffer();
+    }
+    delete dictionary;
 }
 
 // ----------------------------------------------------------------------------
@@ -122,8 +227,14 @@ static JNINativeMethod gMethods[] = {
     {"openNative",           "(Ljava/io/FileDescriptor;JJII)I",
                                                 (void*)greekim_BinaryDictionary_open},
     {"closeNative",          "(I)V",            (void*)greekim_BinaryDictionary_close},
-    {"getSuggestionsNative", "(I[II[C[IIII)I",  (void*)greekim_BinaryDictionary_getSuggestions},
-    {"isValidWordNative",    "(I[CI)Z",         (void*)greekim_BinaryDictionary_isValidWord}
+    {"getSuggestionsNative", "(I[II[C[IIIIIIZ[I)I",
+                                                (void*)greekim_BinaryDictionary_getSuggestions},
+    {"isValidWordNative",    "(I[CI)Z",         (void*)greekim_BinaryDictionary_isValidWord},
+    {"getPrefixFrequenciesNative", "(I[CI[I[CI)V",
+                                                (void*)greekim_BinaryDictionary_getPrefixFrequencies},
+    {"enumerateWordsNative", "(II[C[III[I)I",   (void*)greekim_BinaryDictionary_enumerateWords},
+    {"setParallelismNative", "(II)V",           (void*)greekim_BinaryDictionary_setParallelism},
+    {"warmUpNative",         "(II)I",           (void*)greekim_BinaryDictionary_warmUp}
 };
 
 static int registerNativeMethods(JNIEnv* env, const char* className,
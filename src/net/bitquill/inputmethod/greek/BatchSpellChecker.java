@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * Checks the spelling of many words at once, spreading them over one worker
+ * thread per core.
+ *
+ * Corrections are looked up in a deletion index (as in SymSpell) over the most
+ * frequent dictionary words: every word is indexed under itself and under each
+ * string obtained by deleting one of its letters.  Doing the same to a misspelled
+ * word finds all dictionary words within one edit, without searching the trie.
+ */
+public class BatchSpellChecker {
+    private static final String TAG = "BatchSpellChecker";
+
+    /** Number of dictionary words indexed for corrections */
+    private static final int INDEX_WORDS = 16384;
+    private static final int INDEX_WORD_LENGTH = 32;
+    public static final int MAX_CORRECTIONS = 3;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    private static final char SIGMA = 'σ';
+    private static final char FINAL_SIGMA = 'ς';
+
+    private BinaryDictionary mDict;
+    private Dictionary mUserDictionary;
+    private ExecutorService mExecutor;
+    private int mThreadCount;
+
+    // Correction index; built in the background as soon as the checker is created
+    private Future<?> mIndexTask;
+    private String[] mWords;
+    private int[] mFrequencies;
+    /** Sorted (key hash << 32 | word index) entries */
+    private long[] mIndex;
+
+    public BatchSpellChecker(BinaryDictionary dict, Dictionary userDictionary) {
+        mDict = dict;
+        mUserDictionary = userDictionary;
+        mThreadCount = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(mThreadCount);
+        mIndexTask = mExecutor.submit(new Runnable() {
+            public void run() {
+                buildIndex();
+            }
+        });
+    }
+
+    /**
+     * Checks a list of words in parallel.
+     * @return for each word, null if it is spelled correctly, otherwise its corrections
+     */
+    public String[][] checkWords(final List<String> words) {
+        final int count = words.size();
+        final String[][] corrections = new String[count][];
+        try {
+            mIndexTask.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return corrections;
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Building the correction index failed", ee.getCause());
+            return corrections;
+        }
+        final int chunkSize = (count + mThreadCount - 1) / mThreadCount;
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(mThreadCount);
+        for (int first = 0; first < count; first += chunkSize) {
+            final int from = first;
+            final int to = Math.min(count, first + chunkSize);
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        String word = words.get(i);
+                        if (!isValidWord(word)) {
+                            corrections[i] = getCorrections(word);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : mExecutor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Spell check failed", ee.getCause());
+        }
+        return corrections;
+    }
+
+    private boolean isValidWord(String word) {
+        return mDict.isValidWord(word)
+                || (mUserDictionary != null && mUserDictionary.isValidWord(word));
+    }
+
+    /**
+     * Folds case, accents and final sigma, for matching.
+     */
+    private static char fold(char c) {
+        c = UserDictionary.toLowerCase(c);
+        return c == FINAL_SIGMA ? SIGMA : c;
+    }
+
+    /**
+     * Hashes a word, after folding, with the character at <code>skip</code>
+     * deleted (or none, if <code>skip</code> is negative).
+     */
+    private static int hash(CharSequence word, int skip) {
+        int h = 0x811c9dc5;
+        final int length = word.length();
+        for (int i = 0; i < length; i++) {
+            if (i == skip) continue;
+            h = (h ^ fold(word.charAt(i))) * 0x01000193;
+        }
+        return h;
+    }
+
+    private void buildIndex() {
+        long startTime = System.currentTimeMillis();
+        char[] chars = new char[INDEX_WORDS * INDEX_WORD_LENGTH];
+        int[] frequencies = new int[INDEX_WORDS];
+        final int count = mDict.getFrequentWords(chars, frequencies, INDEX_WORD_LENGTH);
+
+        String[] words = new String[count];
+        int entries = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = i * INDEX_WORD_LENGTH;
+            int length = 0;
+            while (chars[offset + length] != 0) {
+                length++;
+            }
+            words[i] = new String(chars, offset, length);
+            entries += length + 1;
+        }
+
+        long[] index = new long[entries];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            final String word = words[i];
+            index[n++] = ((long) hash(word, -1) << 32) | i;
+            for (int skip = 0; skip < word.length(); skip++) {
+                index[n++] = ((long) hash(word, skip) << 32) | i;
+            }
+        }
+        Arrays.sort(index);
+
+        mWords = words;
+        mFrequencies = frequencies;
+        mIndex = index;
+        Log.i(TAG, "Indexed " + count + " words in "
+                + (System.currentTimeMillis() - startTime) + "msec");
+    }
+
+    /**
+     * Returns the most frequent dictionary words within one edit of a word.
+     */
+    String[] getCorrections(String word) {
+        int[] best = new int[MAX_CORRECTIONS];
+        int found = 0;
+        final int length = word.length();
+        for (int skip = -1; skip < length; skip++) {
+            final long key = (long) hash(word, skip) << 32;
+            for (int pos = lowerBound(key); pos < mIndex.length
+                    && (mIndex[pos] & 0xFFFFFFFF00000000L) == key; pos++) {
+                final int candidate = (int) mIndex[pos];
+                found = addCandidate(best, found, candidate, word);
+            }
+        }
+        String[] corrections = new String[found];
+        for (int i = 0; i < found; i++) {
+            corrections[i] = mWords[best[i]];
+        }
+        return corrections;
+    }
+
+    private int addCandidate(int[] best, int found, int candidate, String word) {
+        for (int i = 0; i < found; i++) {
+            if (best[i] == candidate) return found;
+        }
+        final int freq = mFrequencies[candidate];
+        if (found == best.length && mFrequencies[best[found - 1]] >= freq) {
+            return found;
+        }
+        if (!isWithinOneEdit(word, mWords[candidate])) {
+            return found;
+        }
+        int pos = Math.min(found, best.length - 1);
+        while (pos > 0 && mFrequencies[best[pos - 1]] < freq) {
+            best[pos] = best[pos - 1];
+            pos--;
+        }
+        best[pos] = candidate;
+        return Math.min(found + 1, best.length);
+    }
+
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = mIndex.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mIndex[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Whether two words differ by at most one insertion, deletion, substitution
+     * or transposition of adjacent letters, after folding.
+     */
+    static boolean isWithinOneEdit(CharSequence a, CharSequence b) {
+        final int lengthA = a.length();
+        final int lengthB = b.length();
+        if (Math.abs(lengthA - lengthB) > 1) return false;
+        int i = 0;
+        while (i < lengthA && i < lengthB && fold(a.charAt(i)) == fold(b.charAt(i))) {
+            i++;
+        }
+        if (lengthA == lengthB) {
+            if (i == lengthA) return true;
+            // Substitution, or transposition of i and i+1
+            if (sameTail(a, i + 1, b, i + 1)) return true;
+            return i + 1 < lengthA
+                    && fold(a.charAt(i)) == fold(b.charAt(i + 1))
+                    && fold(a.charAt(i + 1)) == fold(b.charAt(i))
+                    && sameTail(a, i + 2, b, i + 2);
+        } else if (lengthA > lengthB) {
+            return sameTail(a, i + 1, b, i);
+        } else {
+            return sameTail(a, i, b, i + 1);
+        }
+    }
+
+    private static boolean sameTail(CharSequence a, int offsetA, CharSequence b, int offsetB) {
+        if (a.length() - offsetA != b.length() - offsetB) return false;
+        for (; offsetA < a.length(); offsetA++, offsetB++) {
+            if (fold(a.charAt(offsetA)) != fold(b.charAt(offsetB))) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the worker threads, waiting for the checks in progress to finish.
+     */
+    public void close() {
+        mExecutor.shutdown();
+        try {
+            mExecutor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
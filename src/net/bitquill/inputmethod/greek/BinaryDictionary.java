@@ -19,6 +19,8 @@ package net.bitquill.inputmethod.greek;
 
 import java.io.FileDescriptor;
 import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import android.content.res.AssetFileDescriptor;
 import android.util.Log;
@@ -29,57 +31,117 @@ import android.util.Log;
 public class BinaryDictionary extends Dictionary {
     private static final String TAG = "BinaryDictionary";
     
-    public static final int MAX_WORD_LENGTH = 48;
+    public static final int MAX_WORD_LENGTH = 64;
     private static final int MAX_ALTERNATIVES = 16;
     private static final int MAX_WORDS = 16;
+    private static final int MAX_SEARCH_THREADS = 4;
 
     private static final int TYPED_LETTER_MULTIPLIER = 2;
 
     private int mNativeDict;
+    /**
+     * Held for reading by every native call, and for writing by {@link #close},
+     * which thus waits for the calls in progress before it frees the dictionary.
+     * Word checks only take this lock, so that many threads can check at once.
+     */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    /** Bytes of the dictionary, which the native code holds in memory */
+    private long mSize;
     private int[] mInputCodes = new int[MAX_WORD_LENGTH * MAX_ALTERNATIVES];
     private char[] mOutputChars = new char[MAX_WORD_LENGTH * MAX_WORDS];
     private int[] mFrequencies = new int[MAX_WORDS];
+    private char[] mPrefixChars = new char[MAX_WORD_LENGTH];
+    /** Nodes visited by the last search, and 1 if it ran out of budget */
+    private int[] mSearchStats = new int[2];
+    private BloomFilter mBloomFilter;
+    private FrequencyIndex mFrequencyIndex;
+    /** Searched instead of the native dictionary, if the native library is missing */
+    private Dictionary mFallback;
+
+    private static boolean sNativeAvailable;
 
     static {
         try {
             System.loadLibrary("greekim");
+            sNativeAvailable = true;
         } catch (UnsatisfiedLinkError ule) {
             Log.e(TAG, "Could not load native library greekim", ule);
         }
     }
 
+    /**
+     * Whether the native library could be loaded.  If not, dictionaries are only
+     * searched through a fallback, if one is set.
+     */
+    public static boolean isNativeAvailable() {
+        return sNativeAvailable;
+    }
+
     /**
      * Create a dictionary from a raw resource file
      * @param context application context for reading resources
      * @param resId the resource containing the raw binary dictionary
      */
     public BinaryDictionary(AssetFileDescriptor afd) {
-        if (afd != null) {
+        if (afd != null && sNativeAvailable) {
             loadDictionary(afd);
         }
     }
 
+    /**
+     * Sets a dictionary of the same words to search in Java, for when the native
+     * library is not available.
+     * @param size bytes of memory the fallback holds
+     */
+    protected void setFallback(Dictionary fallback, long size) {
+        mLock.writeLock().lock();
+        try {
+            mFallback = fallback;
+            mSize = fallback != null ? size : 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
     private native int openNative(FileDescriptor fd, long offset, long length,
             int typedLetterMultiplier, int fullWordMultiplier);
     private native void closeNative(int dict);
     private native boolean isValidWordNative(int nativeData, char[] word, int wordLength);
     private native int getSuggestionsNative(int dict, int[] inputCodes, int codesSize, 
             char[] outputChars, int[] frequencies,
-            int maxWordLength, int maxWords, int maxAlternatives);
+            int maxWordLength, int maxWords, int maxAlternatives,
+            int maxNodes, int maxMicros, boolean includeTyped, int[] searchStats);
+    private native void getPrefixFrequenciesNative(int dict, char[] word, int wordLength,
+            int[] frequencies, char[] outputChars, int maxWordLength);
+    private native int enumerateWordsNative(int dict, int minFreq, char[] outputChars,
+            int[] frequencies, int maxWordLength, int maxWords, int[] histogram);
+    private native void setParallelismNative(int dict, int threads);
+    private native int warmUpNative(int dict, int levels);
 
     private final void loadDictionary(AssetFileDescriptor afd) {
         long startTime = System.currentTimeMillis();
         mNativeDict = openNative(afd.getFileDescriptor(), 
                 afd.getStartOffset(), afd.getLength(),
                 TYPED_LETTER_MULTIPLIER, FULL_WORD_FREQ_MULTIPLIER);
+        mSize = mNativeDict != 0 ? afd.getLength() : 0;
+        // Large searches are split over the cores, if there is more than one
+        setParallelismNative(mNativeDict,
+                Math.min(MAX_SEARCH_THREADS, Runtime.getRuntime().availableProcessors()));
         Log.i(TAG, "Loaded dictionary in " + (System.currentTimeMillis() - startTime) + "msec");
     }
 
     @Override
     public void getWords(final WordComposer codes, final WordCallback callback) {
+        getWords(codes, callback, null);
+    }
+
+    @Override
+    public synchronized void getWords(final WordComposer codes, final WordCallback callback,
+            final SearchBudget budget) {
         final int codesSize = codes.size();
         // Wont deal with really long words.
         if (codesSize > MAX_WORD_LENGTH - 1) return;
+        if (budget != null && budget.isExhausted()) return;
         
         Arrays.fill(mInputCodes, -1);
         for (int i = 0; i < codesSize; i++) {
@@ -89,8 +151,26 @@ public class BinaryDictionary extends Dictionary {
         }
         Arrays.fill(mOutputChars, (char) 0);
 
-        int count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize, mOutputChars, mFrequencies,
-                MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES);
+        int count;
+        mLock.readLock().lock();
+        try {
+            if (mNativeDict == 0) {
+                if (mFallback != null) {
+                    mFallback.getWords(codes, callback, budget);
+                }
+                return;
+            }
+            count = getSuggestionsNative(mNativeDict, mInputCodes, codesSize, mOutputChars,
+                    mFrequencies, MAX_WORD_LENGTH, MAX_WORDS, MAX_ALTERNATIVES,
+                    budget != null ? budget.getNodesLeft() : SearchBudget.UNLIMITED,
+                    budget != null ? budget.getMicrosLeft() : SearchBudget.UNLIMITED,
+                    codes.isReading(), mSearchStats);
+        } finally {
+            mLock.readLock().unlock();
+        }
+        if (budget != null) {
+            budget.spend(mSearchStats[0], mSearchStats[1] != 0);
+        }
 
         for (int j = 0; j < count; j++) {
             if (mFrequencies[j] < 1) break;
@@ -105,17 +185,122 @@ public class BinaryDictionary extends Dictionary {
         }
     }
 
+    /**
+     * Sets a filter that rules out most invalid words before the trie is searched.
+     * It must contain every word of this dictionary.
+     */
+    public void setBloomFilter(BloomFilter filter) {
+        mBloomFilter = filter;
+    }
+
+    /**
+     * Sets the index used to look up the frequencies of whole words.
+     */
+    public void setFrequencyIndex(FrequencyIndex index) {
+        mFrequencyIndex = index;
+    }
+
     @Override
     public boolean isValidWord(CharSequence word) {
         if (word == null) return false;
+        if (mBloomFilter != null && !mBloomFilter.mightContain(word)) return false;
         char[] chars = word.toString().toLowerCase().toCharArray();
-        return isValidWordNative(mNativeDict, chars, chars.length);
+        mLock.readLock().lock();
+        try {
+            // Closed, e.g. unloaded by a LanguagePackCache
+            if (mNativeDict == 0) return mFallback != null && mFallback.isValidWord(word);
+            return isValidWordNative(mNativeDict, chars, chars.length);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+    
+    @Override
+    public int getFrequency(CharSequence word) {
+        if (word == null || mFrequencyIndex == null) return 0;
+        return mFrequencyIndex.getFrequency(word);
+    }
+
+    @Override
+    public synchronized boolean getPrefixFrequencies(char[] word, int offset, int length,
+            int[] frequencies, char[] outputChars) {
+        if (length > MAX_WORD_LENGTH - 1) return false;
+        System.arraycopy(word, offset, mPrefixChars, 0, length);
+        mLock.readLock().lock();
+        try {
+            if (mNativeDict == 0) return false;
+            getPrefixFrequenciesNative(mNativeDict, mPrefixChars, length,
+                    frequencies, outputChars, length);
+            return true;
+        } finally {
+            mLock.readLock().unlock();
+        }
     }
     
+    /**
+     * Lists the most frequent words of the dictionary. Words are written one per
+     * <code>maxWordLength</code> characters of <code>outputChars</code>, zero-terminated;
+     * longer words are left out.
+     * @param outputChars receives the words
+     * @param frequencies receives the frequency of each word; its length is the
+     * maximum number of words
+     * @return the number of words listed
+     */
+    public synchronized int getFrequentWords(char[] outputChars, int[] frequencies, 
+            int maxWordLength) {
+        final int maxWords = frequencies.length;
+        mLock.readLock().lock();
+        try {
+            if (mNativeDict == 0) return 0;
+            // Count words by frequency, to find the cut-off that fits
+            int[] histogram = new int[256];
+            enumerateWordsNative(mNativeDict, 256, null, null, maxWordLength, 0, histogram);
+            int minFreq = 255;
+            int total = histogram[minFreq];
+            while (minFreq > 1 && total + histogram[minFreq - 1] <= maxWords) {
+                minFreq--;
+                total += histogram[minFreq];
+            }
+            return enumerateWordsNative(mNativeDict, minFreq, outputChars, frequencies,
+                    maxWordLength, maxWords, null);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the top levels of the trie, which nearly every search goes through,
+     * so that the first searches do not wait for them.
+     * @return the number of trie nodes read
+     */
+    public synchronized int warmUp(int levels) {
+        mLock.readLock().lock();
+        try {
+            if (mNativeDict == 0) return 0;
+            return warmUpNative(mNativeDict, levels);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the memory held by the dictionary, in bytes, or 0 if it is closed.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
     public synchronized void close() {
-        if (mNativeDict != 0) {
-            closeNative(mNativeDict);
-            mNativeDict = 0;
+        mLock.writeLock().lock();
+        try {
+            if (mNativeDict != 0) {
+                closeNative(mNativeDict);
+                mNativeDict = 0;
+            }
+            mFallback = null;
+            mSize = 0;
+        } finally {
+            mLock.writeLock().unlock();
         }
     }
 
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * A Bloom filter over the folded words of a dictionary, as written by
+ * <code>dict/el/bloom.py</code>.  It answers "definitely not a word" for
+ * most misspellings without touching the dictionary itself, and "maybe"
+ * for all words in it.
+ */
+public class BloomFilter {
+    private static final String TAG = "BloomFilter";
+
+    private static final int MAGIC = 0x47424c4d; // "GBLM"
+
+    private final long[] mBits;
+    private final int mNumBits;
+    private final int mNumHashes;
+
+    private BloomFilter(long[] bits, int numBits, int numHashes) {
+        mBits = bits;
+        mNumBits = numBits;
+        mNumHashes = numHashes;
+    }
+
+    /**
+     * Reads a filter, closing the stream.
+     * @return the filter, or null if it could not be read
+     */
+    public static BloomFilter load(InputStream in) {
+        long startTime = System.currentTimeMillis();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (data.readInt() != MAGIC) {
+                Log.e(TAG, "Not a Bloom filter");
+                return null;
+            }
+            final int numBits = data.readInt();
+            final int numHashes = data.readInt();
+            if (numBits <= 0 || (numBits & 63) != 0 || numHashes <= 0) {
+                Log.e(TAG, "Bad Bloom filter header");
+                return null;
+            }
+            long[] bits = new long[numBits >>> 6];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = data.readLong();
+            }
+            Log.i(TAG, "Loaded Bloom filter in " + (System.currentTimeMillis() - startTime) + "msec");
+            return new BloomFilter(bits, numBits, numHashes);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not read Bloom filter", ioe);
+            return null;
+        } finally {
+            try {
+                data.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Returns false if the word is certainly not in the dictionary, ignoring
+     * case and accents.
+     */
+    public boolean mightContain(CharSequence word) {
+        final int h1 = WordHash.hash(word);
+        final int h2 = WordHash.mix(h1) | 1;
+        for (int i = 0; i < mNumHashes; i++) {
+            final int bit = (int) (((h1 + i * h2) & 0xFFFFFFFFL) % mNumBits);
+            if ((mBits[bit >>> 6] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
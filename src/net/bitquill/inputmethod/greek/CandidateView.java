@@ -55,6 +55,8 @@ public class CandidateView extends View {
     
     private boolean mHaveMinimalSuggestion;
     
+    private CharSequence mStatusText;
+    
     private Rect mBgPadding;
 
     private TextView mPreviewText;
@@ -262,6 +264,10 @@ public class CandidateView extends View {
             paint.setTypeface(Typeface.DEFAULT);
             x += wordWidth;
         }
+        if (count == 0 && mStatusText != null && canvas != null) {
+            paint.setColor(mColorOther);
+            canvas.drawText(mStatusText, 0, mStatusText.length(), x + X_GAP, y, paint);
+        }
         mTotalWidth = x;
         if (mTargetScrollX != getScrollX()) {
             scrollToTarget();
@@ -303,6 +309,14 @@ public class CandidateView extends View {
         requestLayout();
     }
 
+    /**
+     * Sets a short text to show when there are no suggestions, or null for none.
+     */
+    public void setStatusText(CharSequence statusText) {
+        mStatusText = statusText;
+        invalidate();
+    }
+
     public void scrollPrev() {
         final int scrollX = getScrollX();
         int i = 0;
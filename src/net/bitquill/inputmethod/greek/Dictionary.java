@@ -59,6 +59,17 @@ abstract public class Dictionary {
      */
     abstract public void getWords(final WordComposer composer, final WordCallback callback);
 
+    /**
+     * Same as {@link #getWords(WordComposer, WordCallback)}, but stops early when the
+     * budget runs out, leaving it exhausted. Dictionaries that cannot stop early
+     * search in full.
+     * @param budget the budget to spend from, or null for no limit
+     */
+    public void getWords(final WordComposer composer, final WordCallback callback,
+            final SearchBudget budget) {
+        getWords(composer, callback);
+    }
+
     /**
      * Checks if the given word occurs in the dictionary
      * @param word the word to search for. The search should be case-insensitive.
@@ -66,6 +77,34 @@ abstract public class Dictionary {
      */
     abstract public boolean isValidWord(CharSequence word);
     
+    /**
+     * Finds the words in the dictionary that are prefixes of the given word, ignoring
+     * case and accents. For each prefix length <code>k+1</code>, <code>frequencies[k]</code>
+     * is set to the frequency of the best matching word (zero if none), and the word itself
+     * is stored in <code>outputChars</code> starting at <code>k * length</code>.
+     * @param word the character array containing the word
+     * @param offset starting offset of the word in the character array
+     * @param length length of the word
+     * @param frequencies receives the frequency for each prefix length
+     * @param outputChars receives the matching words; must hold <code>length * length</code>
+     * characters
+     * @return false if the dictionary does not support prefix lookups
+     */
+    public boolean getPrefixFrequencies(char[] word, int offset, int length,
+            int[] frequencies, char[] outputChars) {
+        return false;
+    }
+
+    /**
+     * Looks up the frequency of a word, ignoring case and accents.
+     * @param word the word to look up
+     * @return the frequency of the word, or zero if it is not in the dictionary
+     * (or the dictionary cannot tell)
+     */
+    public int getFrequency(CharSequence word) {
+        return 0;
+    }
+    
     /**
      * Compares the contents of the character array with the typed word and returns true if they
      * are the same.
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.bitquill.inputmethod.greek;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.Printer;
+
+/**
+ * Shares the dictionaries of the language packs within the process.
+ *
+ * A dictionary is opened by the first {@link #acquire} of its pack, and the
+ * same instance is handed out until every holder has called {@link #release};
+ * it is then closed at once, rather than when it is finalized.  A new
+ * {@link Suggest}, or the spell checker service, thus costs no dictionary I/O
+ * while another holds the dictionary, and its native memory is never held twice.
+ *
+ * Dictionaries are opened on a background thread, so that the keyboard can be
+ * shown while they load, and the top levels of each trie are then read once
+ * (warmed up) so that the first searches are not slower than the rest.
+ */
+public class DictionaryRegistry {
+    private static final String TAG = "DictionaryRegistry";
+
+    /** Trie levels read after a dictionary is opened; a few thousand nodes */
+    private static final int WARM_UP_LEVELS = 3;
+
+    private static class Entry {
+        final String key;
+        FutureTask<BinaryDictionary> task;
+        /** Set once loaded, if still held then */
+        BinaryDictionary dict;
+        int refs;
+        long loadMillis;
+        long warmUpMillis;
+        int warmUpNodes;
+
+        Entry(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final HashMap<String, Entry> sByKey = new HashMap<String, Entry>();
+    private static final ExecutorService sLoader = Executors.newSingleThreadExecutor();
+
+    private DictionaryRegistry() {
+    }
+
+    /**
+     * Returns the dictionary of a language pack, opening it in the background if
+     * no one holds it.  Each call must be matched by a call to {@link #release}.
+     * @return the dictionary when it is ready, which is null if it is not available
+     */
+    public static synchronized Future<BinaryDictionary> acquire(Context context,
+            final LanguagePack pack) {
+        Entry entry = sByKey.get(pack.dictionaryKey);
+        if (entry == null) {
+            // The dictionary may outlive the component that opened it
+            final Context appContext = context.getApplicationContext();
+            final Entry newEntry = new Entry(pack.dictionaryKey);
+            newEntry.task = new FutureTask<BinaryDictionary>(new Callable<BinaryDictionary>() {
+                public BinaryDictionary call() {
+                    return load(appContext, pack, newEntry);
+                }
+            });
+            entry = newEntry;
+            sByKey.put(entry.key, entry);
+            sLoader.execute(entry.task);
+        }
+        entry.refs++;
+        return entry.task;
+    }
+
+    private static BinaryDictionary load(Context context, LanguagePack pack, Entry entry) {
+        final long startTime = System.currentTimeMillis();
+        BinaryDictionary dict = pack.openDictionary(context);
+        if (dict == null) {
+            return null;
+        }
+        final long loadedTime = System.currentTimeMillis();
+        final int nodes = dict.warmUp(WARM_UP_LEVELS);
+        final long endTime = System.currentTimeMillis();
+        synchronized (DictionaryRegistry.class) {
+            if (sByKey.get(entry.key) != entry) {
+                // Released by all holders while it was loading
+                dict.close();
+                return null;
+            }
+            entry.dict = dict;
+            entry.loadMillis = loadedTime - startTime;
+            entry.warmUpMillis = endTime - loadedTime;
+            entry.warmUpNodes = nodes;
+        }
+        Log.i(TAG, "Opened " + entry.key + " in " + entry.loadMillis + "msec, and read "
+                + nodes + " nodes in " + entry.warmUpMillis + "msec");
+        return dict;
+    }
+
+    /**
+     * Waits for a dictionary returned by {@link #acquire} to be ready.
+     * @return the dictionary, or null if it is not available
+     */
+    public static BinaryDictionary get(Future<BinaryDictionary> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Failed to open dictionary", ee.getCause());
+        }
+        return null;
+    }
+
+    /**
+     * Gives up the dictionary of a pack, and closes it if no one else holds it.
+     */
+    public static synchronized void release(LanguagePack pack) {
+        Entry entry = sByKey.get(pack.dictionaryKey);
+        if (entry == null) {
+            Log.w(TAG, "Released a dictionary that is not held");
+            return;
+        }
+        if (--entry.refs == 0) {
+            sByKey.remove(entry.key);
+            if (entry.dict != null) {
+                entry.dict.close();
+            }
+            Log.i(TAG, "Closed " + entry.key);
+        }
+    }
+
+    /**
+     * Prints the dictionaries open, with how long they took to load and warm up.
+     */
+    public static synchronized void dump(Printer p) {
+        p.println("DictionaryRegistry:");
+        for (Entry entry : sByKey.values()) {
+            if (entry.dict != null) {
+                p.println("  " + entry.key + ": refs=" + entry.refs
+                        + " size=" + entry.dict.getSize()
+                        + " load=" + entry.loadMillis + "msec"
+                        + " warmUp=" + entry.warmUpMillis + "msec/" + entry.warmUpNodes + " nodes");
+            } else {
+                p.println("  " + entry.key + ": refs=" + entry.refs
+                        + (entry.task.isDone() ? " not available" : " loading"));
+            }
+        }
+    }
+}
@@ -20,9 +20,22 @@ import java.io.IOException;
 
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
 
 public class EnglishBinaryDictionary extends BinaryDictionary {
     public EnglishBinaryDictionary (Context context) throws NameNotFoundException, IOException {
-        super(context.getPackageManager().getResourcesForApplication("com.android.inputmethod.latin").getAssets().openNonAssetFd("res/raw-en/main.dict"));
+        super(open(context));
+    }
+
+    private static AssetFileDescriptor open(Context context)
+            throws NameNotFoundException, IOException {
+        AssetFileDescriptor afd = EnglishDictionaryCache.open(context);
+        if (afd != null) {
+            return afd;
+        }
+        // No copy could be made; read it from LatinIME itself
+        return context.getPackageManager()
+                .getResourcesForApplication(EnglishDictionaryCache.SOURCE_PACKAGE)
+                .getAssets().openNonAssetFd("res/raw-en/main.dict");
     }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.bitquill.inputmethod.greek;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Keeps a copy of the English dictionary of LatinIME in our own files.
+ *
+ * The dictionary is a resource of another package, which may be compressed
+ * there and may change or go away with it.  It is copied once per version of
+ * that package, into a file named after the version code, which is then mapped
+ * directly.  When the package is updated, {@link PackageReceiver} makes the new
+ * copy in the background; when it is removed, the last copy is still used.
+ */
+public class EnglishDictionaryCache {
+    private static final String TAG = "EnglishDictionaryCache";
+
+    static final String SOURCE_PACKAGE = "com.android.inputmethod.latin";
+    private static final String SOURCE_PATH = "res/raw-en/main.dict";
+    private static final String SOURCE_RESOURCE = "main";
+
+    private static final String FILE_PREFIX = "en_main_";
+    private static final String FILE_SUFFIX = ".dict";
+
+    private EnglishDictionaryCache() {
+    }
+
+    /**
+     * Opens the copy of the dictionary, making it first if it is missing or older
+     * than the installed LatinIME.
+     * @return the copy, or null if there is none and it cannot be made
+     */
+    public static AssetFileDescriptor open(Context context) {
+        File file = getFile(context);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return new AssetFileDescriptor(
+                    ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_ONLY),
+                    0, file.length());
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not open " + file, ioe);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the copy for the installed version of LatinIME, making it if needed,
+     * or the last copy made if LatinIME is not installed.
+     */
+    static synchronized File getFile(Context context) {
+        final File dir = context.getFilesDir();
+        int version;
+        try {
+            version = context.getPackageManager().getPackageInfo(SOURCE_PACKAGE, 0).versionCode;
+        } catch (NameNotFoundException nnfe) {
+            return findCopy(dir, null);
+        }
+        File file = new File(dir, FILE_PREFIX + version + FILE_SUFFIX);
+        if (!file.exists()) {
+            if (!copy(context, file)) {
+                return findCopy(dir, null);
+            }
+            // Older copies still mapped stay readable until they are unmapped
+            File old;
+            while ((old = findCopy(dir, file)) != null) {
+                old.delete();
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Returns a copy other than <code>except</code>, or null if there is none.
+     */
+    private static File findCopy(File dir, File except) {
+        String[] names = dir.list();
+        if (names == null) {
+            return null;
+        }
+        for (String name : names) {
+            if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)
+                    && (except == null || !name.equals(except.getName()))) {
+                return new File(dir, name);
+            }
+        }
+        return null;
+    }
+
+    private static boolean copy(Context context, File file) {
+        final long startTime = System.currentTimeMillis();
+        final File temp = new File(file.getPath() + ".tmp");
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = openSource(context);
+            out = new FileOutputStream(temp);
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            out = null;
+            // Readers never see a partial copy
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            Log.i(TAG, "Copied " + file.length() + " bytes of English dictionary in "
+                    + (System.currentTimeMillis() - startTime) + "msec");
+            return true;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to copy English dictionary", e);
+            temp.delete();
+            return false;
+        } finally {
+            try {
+                if (in != null) in.close();
+                if (out != null) out.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+
+    private static InputStream openSource(Context context) throws NameNotFoundException,
+            IOException {
+        Resources res = context.getPackageManager().getResourcesForApplication(SOURCE_PACKAGE);
+        try {
+            return res.getAssets().openNonAssetFd(SOURCE_PATH).createInputStream();
+        } catch (IOException ioe) {
+            // Compressed in the package, so it has no file descriptor of its own
+            int id = res.getIdentifier(SOURCE_RESOURCE, "raw", SOURCE_PACKAGE);
+            if (id == 0) {
+                throw ioe;
+            }
+            return res.openRawResource(id);
+        }
+    }
+
+    /**
+     * Makes a new copy of the dictionary when LatinIME is installed or updated.
+     */
+    public static class PackageReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(final Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data == null || !SOURCE_PACKAGE.equals(data.getSchemeSpecificPart())) {
+                return;
+            }
+            new Thread("EnglishDictionaryCache") {
+                @Override
+                public void run() {
+                    getFile(context.getApplicationContext());
+                }
+            }.start();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.res.AssetFileDescriptor;
+import android.util.Log;
+
+/**
+ * Maps words to their id and frequency in constant time, through a minimal
+ * perfect hash built by <code>dict/el/mph.py</code>.  Words are folded (see
+ * {@link WordHash}) before hashing.  The index file is memory mapped, not read.
+ *
+ * Every string hashes to some word id, so each slot also keeps a 16-bit
+ * fingerprint of its word; a string that is not a word gets through only if
+ * its fingerprint happens to match, about once in 65536 lookups.
+ */
+public class FrequencyIndex {
+    private static final String TAG = "FrequencyIndex";
+
+    private static final int MAGIC = 0x474d5048; // "GMPH"
+    private static final int HEADER_SIZE = 16;
+    private static final int GOLDEN = 0x9e3779b9;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mWordCount;
+    private final int mBucketCount;
+    private final int mSeed;
+    private final int mFingerprintsStart;
+    private final int mFrequenciesStart;
+
+    private FrequencyIndex(MappedByteBuffer buffer) {
+        mBuffer = buffer;
+        mWordCount = buffer.getInt(4);
+        mBucketCount = buffer.getInt(8);
+        mSeed = buffer.getInt(12);
+        mFingerprintsStart = HEADER_SIZE + 4 * mBucketCount;
+        mFrequenciesStart = mFingerprintsStart + 2 * mWordCount;
+    }
+
+    /**
+     * Maps an index file.
+     * @return the index, or null if it could not be mapped
+     */
+    public static FrequencyIndex load(AssetFileDescriptor afd) {
+        if (afd == null) return null;
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(afd.getFileDescriptor());
+            MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    afd.getStartOffset(), afd.getLength());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                Log.e(TAG, "Not a frequency index");
+                return null;
+            }
+            FrequencyIndex index = new FrequencyIndex(buffer);
+            if (index.mWordCount <= 0 || index.mBucketCount <= 0
+                    || buffer.capacity() < index.mFrequenciesStart + index.mWordCount) {
+                Log.e(TAG, "Truncated frequency index");
+                return null;
+            }
+            return index;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not map frequency index", ioe);
+            return null;
+        } finally {
+            // The mapping outlives the descriptor
+            try {
+                if (in != null) in.close();
+                afd.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the id of a word, between zero and the number of words, or -1 if
+     * it is not in the dictionary.
+     */
+    public int getWordId(CharSequence word) {
+        final int h1 = WordHash.hash(word);
+        final int bucket = (int) ((h1 & 0xFFFFFFFFL) % mBucketCount);
+        final int displacement = mBuffer.getInt(HEADER_SIZE + 4 * bucket);
+        final int slot;
+        if (displacement < 0) {
+            slot = -displacement - 1;
+        } else {
+            final int h2 = WordHash.hash(word, mSeed);
+            slot = (int) ((WordHash.mix(h2 + displacement * GOLDEN) & 0xFFFFFFFFL) % mWordCount);
+        }
+        final int fingerprint = mBuffer.getShort(mFingerprintsStart + 2 * slot) & 0xFFFF;
+        return fingerprint == (WordHash.mix(h1) >>> 16) ? slot : -1;
+    }
+
+    /**
+     * Returns the frequency of a word, or zero if it is not in the dictionary.
+     */
+    public int getFrequency(CharSequence word) {
+        final int id = getWordId(word);
+        return id < 0 ? 0 : mBuffer.get(mFrequenciesStart + id) & 0xFF;
+    }
+
+    public int getWordCount() {
+        return mWordCount;
+    }
+}
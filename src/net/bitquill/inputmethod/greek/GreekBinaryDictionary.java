@@ -21,5 +21,15 @@ import android.content.Context;
 public class GreekBinaryDictionary extends BinaryDictionary {
     public GreekBinaryDictionary (Context context) {
         super(context.getResources().openRawResourceFd(R.raw.eldict));
+        setBloomFilter(BloomFilter.load(context.getResources().openRawResource(R.raw.eldict_bloom)));
+        setFrequencyIndex(FrequencyIndex.load(context.getResources().openRawResourceFd(R.raw.eldict_mph)));
+        if (!isNativeAvailable()) {
+            // The same words in LOUDS form, which can be searched in Java
+            LoudsDictionary louds = LoudsDictionary.load(
+                    context.getResources().openRawResource(R.raw.eldict_louds));
+            if (louds != null) {
+                setFallback(louds, louds.getSize());
+            }
+        }
     }
 }
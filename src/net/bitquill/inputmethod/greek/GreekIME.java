@@ -77,6 +77,11 @@ public class GreekIME extends InputMethodService
     private static final String PREF_AUTO_COMPLETE = "auto_complete";
     private static final String PREF_SMS_7BIT = "sms_7bit";
     private static final String PREF_AUTO_FINAL_SIGMA = "auto_final_sigma";
+    private static final String PREF_GREEKLISH = "greeklish";
+    private static final String PREF_BILINGUAL = "bilingual";
+    private static final String PREF_AUTO_LANGUAGE = "auto_language";
+    private static final String PREF_AUTO_KEYBOARD = "auto_keyboard";
+    private static final String PREF_SEARCH_EFFORT = "search_effort";
     
     private static final int MSG_UPDATE_SUGGESTIONS = 0;
 
@@ -84,6 +89,10 @@ public class GreekIME extends InputMethodService
     private static final int DELETE_ACCELERATE_AT = 20;
     // Key events coming any faster than this are long-presses.
     private static final int QUICK_PRESS = 200; 
+    // Longest inserted text that is transcoded to 7bit in SMS mode.
+    private static final int MAX_TRANSCODE_LENGTH = 4096;
+    // Text before the cursor that the language is first detected from.
+    private static final int LANGUAGE_CONTEXT_LENGTH = 64;
     
     private static final int KEYCODE_ENTER = 10;
     private static final int KEYCODE_SPACE = ' ';
@@ -109,6 +118,7 @@ public class GreekIME extends InputMethodService
     HardKeyboardState mHardKeyboard;
 
     private UserDictionary mUserDictionary;
+    private UserNgramStore mNgramStore;
 
     private String mLocale;
     
@@ -129,8 +139,14 @@ public class GreekIME extends InputMethodService
     private boolean mShowSuggestions;
     private boolean mAutoComplete;
     private int     mCorrectionMode;
+    private int     mSearchEffort;
     private boolean mAutoCap;
     private boolean mAutoFinalSigma;
+    private boolean mGreeklish;
+    private boolean mBilingual;
+    private boolean mAutoLanguage;
+    private boolean mAutoKeyboard;
+    private LanguageIdentifier mLanguageIdentifier;
     // Indicates whether the suggestion strip is to be on in landscape
     private boolean mJustAccepted;
     private CharSequence mJustRevertedSeparator;
@@ -143,6 +159,7 @@ public class GreekIME extends InputMethodService
     private static final int ACCENT_STATE_BOTH = 3; 
     
     private boolean mIMMode;
+    private SmsCounter mSmsCounter = new SmsCounter();
     private int mAccentShiftState;
     
     private Vibrator mVibrator;
@@ -173,6 +190,8 @@ public class GreekIME extends InputMethodService
         //setStatusIcon(R.drawable.ime_qwerty);
         mKeyboardSwitcher = new KeyboardSwitcher(this);
         mHardKeyboard = new HardKeyboardState(this);
+        mNgramStore = new UserNgramStore(this);
+        mLanguageIdentifier = LanguageIdentifier.load(getResources().openRawResource(R.raw.langid));
 
         initSuggest(getResources().getConfiguration().locale.toString());
         
@@ -187,13 +206,23 @@ public class GreekIME extends InputMethodService
 
     private void initSuggest(String locale) {
         mLocale = locale;
-        mSuggest = new Suggest(this);
+        // The old suggest is closed last, so that the dictionaries both use stay open
+        Suggest oldSuggest = mSuggest;
+        mSuggest = new Suggest(this, mKeyboardSwitcher.getKeyboardLanguage());
         mSuggest.setCorrectionMode(mCorrectionMode);
+        mSuggest.setTransliteration(mGreeklish);
+        mSuggest.setBilingual(mBilingual);
+        mSuggest.setSearchEffort(mSearchEffort);
         mUserDictionary = null;
         try {
             mUserDictionary = new UserDictionary(this);
         } catch (Exception e) {  }
         mSuggest.setUserDictionary(mUserDictionary);
+        mSuggest.setNgramStore(mNgramStore);
+        mSuggest.setDictionaryLanguage(mKeyboardSwitcher.getKeyboardLanguage());
+        if (oldSuggest != null) {
+            oldSuggest.close();
+        }
         mWordSeparators = getResources().getString(R.string.word_separators);
         mSentenceSeparators = getResources().getString(R.string.sentence_separators);
     }
@@ -204,10 +233,21 @@ public class GreekIME extends InputMethodService
         if (mUserDictionary != null) {
             mUserDictionary.close();
         }
+        mNgramStore.close();
+        mSuggest.close();
         unregisterReceiver(mReceiver);
         if (TRACE) Debug.stopMethodTracing();
         super.onDestroy();
     }
+
+    @Override
+    public void onLowMemory() {
+        // Dictionaries of languages not in use are loaded again when needed
+        if (mSuggest != null) {
+            mSuggest.trimMemory();
+        }
+        super.onLowMemory();
+    }
     
     @Override
     public void onConfigurationChanged(Configuration config) {
@@ -268,6 +308,12 @@ public class GreekIME extends InputMethodService
         mKeyboardSwitcher.set7bitMode(mSMS7bitMode);
         
         TextEntryState.newSession(this);
+        mNgramStore.resetContext();
+        mSmsCounter.reset();
+        if (mIMMode) {
+            mSmsCounter.resync(getCurrentInputConnection(), attribute.initialSelEnd);
+        }
+        updateSmsStatus();
         
         mPredictionOn = false;
         mCompletionOn = false;
@@ -339,8 +385,12 @@ public class GreekIME extends InputMethodService
         mInputView.setProximityCorrectionEnabled(true);
         if (mSuggest != null) {
             mSuggest.setCorrectionMode(mCorrectionMode);
+            mSuggest.setTransliteration(mGreeklish);
+            mSuggest.setBilingual(mBilingual);
+            mSuggest.setSearchEffort(mSearchEffort);
         }
         mPredictionOn = mPredictionOn && mCorrectionMode > 0;
+        startLanguageDetection();
     }
 
     @Override
@@ -369,6 +419,17 @@ public class GreekIME extends InputMethodService
             int candidatesStart, int candidatesEnd) {
         super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd,
                 candidatesStart, candidatesEnd);
+        if (mIMMode) {
+            if (mSMS7bitMode && candidatesStart < 0 && newSelStart == newSelEnd
+                    && newSelEnd > oldSelEnd
+                    && mSmsCounter.isInsertion(getCurrentInputConnection(), newSelEnd)
+                    && transcodeInsertedText(newSelEnd - oldSelEnd)) {
+                // We'll get another update once the text is replaced
+                return;
+            }
+            mSmsCounter.update(getCurrentInputConnection(), newSelStart, newSelEnd);
+            updateSmsStatus();
+        }
         // If the current selection in the text view changes, we should
         // clear whatever candidate text we have.
         if (mComposing.length() > 0 && mPredicting && (newSelStart != candidatesEnd
@@ -501,10 +562,15 @@ public class GreekIME extends InputMethodService
             mPredicting = false;
             if (mComposing.length() > 0) {
                 if (inputConnection != null) {
-                    inputConnection.commitText(mComposing, 1);
+                    if (mIMMode && mSMS7bitMode) {
+                        inputConnection.commitText(GsmAlphabet.transcode(mComposing), 1);
+                    } else {
+                        inputConnection.commitText(mComposing, 1);
+                    }
                 }
                 mCommittedLength = mComposing.length();
                 TextEntryState.acceptedTyped(mComposing);
+                mNgramStore.commitWord(mComposing);
             }
             updateSuggestions();
         }
@@ -747,6 +813,9 @@ public class GreekIME extends InputMethodService
         	primaryCode = addAccent(primaryCode, mAccentShiftState);
         }
         accentStateClear();
+        if (mLanguageIdentifier != null) {
+            mLanguageIdentifier.addChar((char) primaryCode);
+        }
         
         // XXX check patch
         if (mPredicting) {
@@ -956,6 +1025,13 @@ public class GreekIME extends InputMethodService
         finalizeSigma();
         sendKeyChar((char)primaryCode);
         TextEntryState.typedCharacter((char) primaryCode, true);
+        if (isSentenceSeparator(primaryCode)) {
+            mNgramStore.resetContext();
+        }
+        if (mLanguageIdentifier != null) {
+            mLanguageIdentifier.addChar((char) primaryCode);
+            updateDetectedLanguage(false);
+        }
         if (TextEntryState.getState() == TextEntryState.STATE_PUNCTUATION_AFTER_ACCEPTED 
                 && primaryCode != KEYCODE_ENTER) {
             swapPunctuationAndSpace();
@@ -973,6 +1049,53 @@ public class GreekIME extends InputMethodService
         }
     }
     
+    /**
+     * Starts over detecting the language, from the text before the cursor, and
+     * switches to its keyboard if so set.
+     */
+    private void startLanguageDetection() {
+        if (mLanguageIdentifier == null) {
+            return;
+        }
+        mLanguageIdentifier.reset();
+        if (!mAutoLanguage) {
+            return;
+        }
+        InputConnection ic = getCurrentInputConnection();
+        if (ic != null) {
+            CharSequence before = ic.getTextBeforeCursor(LANGUAGE_CONTEXT_LENGTH, 0);
+            if (before != null) {
+                mLanguageIdentifier.addText(before);
+            }
+        }
+        updateDetectedLanguage(mAutoKeyboard);
+    }
+
+    /**
+     * Picks the dictionary for the language detected, if it is clear yet: if the
+     * user enabled Greeklish, Latin letters are decoded as Greeklish unless the
+     * text reads as English; until it is clear, the preference holds.  Switching
+     * the keyboard in the middle of a text would surprise the user, so it is only
+     * done when asked to, at the start of input.
+     */
+    private void updateDetectedLanguage(boolean switchKeyboard) {
+        if (!mAutoLanguage || mSuggest == null) {
+            return;
+        }
+        final int language = mLanguageIdentifier.getLanguage();
+        if (language == LanguageIdentifier.UNKNOWN) {
+            mSuggest.setTransliteration(mGreeklish);
+            return;
+        }
+        final int keyboardLanguage = language == LanguageIdentifier.GREEK
+                ? KeyboardSwitcher.LANGUAGE_EL : KeyboardSwitcher.LANGUAGE_EN;
+        if (switchKeyboard && mKeyboardSwitcher.isAlphabetMode()
+                && mKeyboardSwitcher.getKeyboardLanguage() != keyboardLanguage) {
+            changeKeyboardLanguage();
+        }
+        mSuggest.setTransliteration(mGreeklish && language != LanguageIdentifier.ENGLISH);
+    }
+
     private void handleClose() {
         commitTyped(getCurrentInputConnection());
         requestHideSelf(0);
@@ -1018,6 +1141,12 @@ public class GreekIME extends InputMethodService
             mCandidateView.setSuggestions(null, false, false, false);
             return;
         }
+        if (!mSuggest.isReady()) {
+            // Show nothing, rather than wait for the dictionary to load
+            mCandidateView.setSuggestions(null, false, false, false);
+            mBestWord = null;
+            return;
+        }
 
         List<CharSequence> stringList = mSuggest.getSuggestions(mInputView, mWord, false);
         boolean correctionAvailable = mSuggest.hasMinimalCorrection();
@@ -1087,6 +1216,11 @@ public class GreekIME extends InputMethodService
             suggestion = Character.toUpperCase(suggestion.charAt(0))
                     + suggestion.subSequence(1, suggestion.length()).toString();
         }
+        // Words are learned as the dictionary spells them, not as transcoded
+        mNgramStore.commitWords(suggestion);
+        if (mIMMode && mSMS7bitMode) {
+            suggestion = GsmAlphabet.transcode(suggestion);
+        }
         InputConnection ic = getCurrentInputConnection();
         if (ic != null) {
             ic.commitText(suggestion, 1);
@@ -1099,6 +1233,36 @@ public class GreekIME extends InputMethodService
         updateSoftShiftKeyState(getCurrentInputEditorInfo());
     }
 
+    /**
+     * Replaces text that was just inserted before the cursor (e.g. pasted) with
+     * its 7bit transcoding, if that differs.
+     * @return true if the text was replaced
+     */
+    private boolean transcodeInsertedText(int length) {
+        InputConnection ic = getCurrentInputConnection();
+        if (ic == null || length > MAX_TRANSCODE_LENGTH) return false;
+        CharSequence inserted = ic.getTextBeforeCursor(length, 0);
+        if (inserted == null) return false;
+        CharSequence transcoded = GsmAlphabet.transcode(inserted);
+        if (transcoded == inserted) return false;
+        ic.beginBatchEdit();
+        ic.deleteSurroundingText(inserted.length(), 0);
+        ic.commitText(transcoded, 1);
+        ic.endBatchEdit();
+        return true;
+    }
+
+    private void updateSmsStatus() {
+        if (mCandidateView == null) return;
+        if (mIMMode) {
+            mCandidateView.setStatusText(getResources().getString(R.string.sms_counter,
+                    mSmsCounter.getLength(), mSmsCounter.getCapacity(),
+                    mSmsCounter.getSegmentCount()));
+        } else {
+            mCandidateView.setStatusText(null);
+        }
+    }
+
     private boolean isCursorTouchingWord() {
         InputConnection ic = getCurrentInputConnection();
         if (ic == null) return false;
@@ -1274,6 +1438,10 @@ public class GreekIME extends InputMethodService
         mSMS7bitMode = sp.getBoolean(PREF_SMS_7BIT, true);
         mAutoCap = sp.getBoolean(PREF_AUTO_CAP, true);
         mAutoFinalSigma = sp.getBoolean(PREF_AUTO_FINAL_SIGMA, true);
+        mGreeklish = sp.getBoolean(PREF_GREEKLISH, false);
+        mBilingual = sp.getBoolean(PREF_BILINGUAL, false);
+        mAutoLanguage = sp.getBoolean(PREF_AUTO_LANGUAGE, false);
+        mAutoKeyboard = sp.getBoolean(PREF_AUTO_KEYBOARD, false) & mAutoLanguage;
         mQuickFixes = sp.getBoolean(PREF_QUICK_FIXES, true);
         // If there is no auto text data, then quickfix is forced to "on", so that the other options
         // will continue to work
@@ -1282,6 +1450,12 @@ public class GreekIME extends InputMethodService
         mAutoComplete = sp.getBoolean(PREF_AUTO_COMPLETE, true) & mShowSuggestions;
         mAutoCorrectOn = mSuggest != null && (mAutoComplete || mQuickFixes);
         mCorrectionMode = mAutoComplete ? 2 : (mQuickFixes ? 1 : 0);
+        try {
+            mSearchEffort = Integer.parseInt(sp.getString(PREF_SEARCH_EFFORT, 
+                    String.valueOf(Suggest.EFFORT_BALANCED)));
+        } catch (NumberFormatException nfe) {
+            mSearchEffort = Suggest.EFFORT_BALANCED;
+        }
     }
 
     private void showOptionsMenu() {
@@ -1352,6 +1526,9 @@ public class GreekIME extends InputMethodService
         p.println("  mComposing=" + mComposing.toString());
         p.println("  mPredictionOn=" + mPredictionOn);
         p.println("  mCorrectionMode=" + mCorrectionMode);
+        p.println("  mSearchEffort=" + mSearchEffort);
+        p.println("  mBilingual=" + mBilingual);
+        p.println("  mAutoLanguage=" + mAutoLanguage + " mAutoKeyboard=" + mAutoKeyboard);
         p.println("  mPredicting=" + mPredicting);
         p.println("  mAutoCorrectOn=" + mAutoCorrectOn);
         p.println("  mAutoSpace=" + mAutoSpace);
@@ -1359,6 +1536,7 @@ public class GreekIME extends InputMethodService
         p.println("  TextEntryState.state=" + TextEntryState.getState());
         p.println("  mSoundOn=" + mSoundOn);
         p.println("  mVibrateOn=" + mVibrateOn);
+        DictionaryRegistry.dump(p);
     }
 
     // Characters per second measurement
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+/**
+ * Decodes Greek words typed with Latin letters ("greeklish") against
+ * a Greek dictionary.
+ *
+ * Each Latin letter expands into its possible Greek letters (e.g. i may be
+ * ι, η or υ), and these are passed to the dictionary as the alternatives
+ * of that key, just like nearby keys are for normal typing.  Digraphs such as
+ * th or ps may stand either for one Greek letter or for two, which changes
+ * the number of keys.  So we enumerate segmentations of the typed word with
+ * a small beam search, preferring single letters for digraphs, and search the
+ * dictionary once per surviving segmentation.
+ */
+public class GreeklishDecoder extends Dictionary implements Dictionary.WordCallback {
+
+    /** Maximum number of segmentations searched per keystroke */
+    private static final int BEAM_WIDTH = 4;
+
+    /** Longest word we try to decode */
+    private static final int MAX_WORD_LENGTH = BinaryDictionary.MAX_WORD_LENGTH - 1;
+
+    /**
+     * Greek alternatives for each Latin letter or digit, most likely first.
+     */
+    private static final int[][] LETTER_CODES = new int[128][];
+
+    /**
+     * Digraphs that may also stand for a single Greek letter.
+     */
+    private static final String[] DIGRAPHS = {
+        "th", "ps", "ks", "ch", "kh", "ph",
+    };
+    private static final int[][] DIGRAPH_CODES = {
+        { 'θ' }, { 'ψ' }, { 'ξ' }, { 'χ' }, { 'χ' }, { 'φ' },
+    };
+
+    static {
+        setLetter('a', "α");
+        setLetter('b', "β");
+        setLetter('c', "κσψ");
+        setLetter('d', "δ");
+        setLetter('e', "εη");
+        setLetter('f', "φ");
+        setLetter('g', "γ");
+        setLetter('h', "ηχ");
+        setLetter('i', "ιηυ");
+        setLetter('j', "ξ");
+        setLetter('k', "κ");
+        setLetter('l', "λ");
+        setLetter('m', "μ");
+        setLetter('n', "ν");
+        setLetter('o', "οω");
+        setLetter('p', "π");
+        setLetter('q', "κ");
+        setLetter('r', "ρ");
+        setLetter('s', "σς");
+        setLetter('t', "τ");
+        setLetter('u', "υ");
+        setLetter('v', "β");
+        setLetter('w', "ως");
+        setLetter('x', "χξ");
+        setLetter('y', "υψγ");
+        setLetter('z', "ζ");
+        setLetter('8', "θ");
+        setLetter('3', "ξ");
+    }
+
+    private static void setLetter(char latin, String greek) {
+        int[] codes = new int[greek.length()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = greek.charAt(i);
+        }
+        LETTER_CODES[latin] = codes;
+    }
+
+    private Dictionary mGreekDict;
+
+    private WordComposer[] mSegmentations = new WordComposer[BEAM_WIDTH];
+    private int[] mCosts = new int[BEAM_WIDTH];
+    private int mSegmentationCount;
+
+    private char[] mLatin = new char[MAX_WORD_LENGTH];
+    private int mLatinLength;
+
+    private WordCallback mCallback;
+    private int mCurrentCost;
+
+    // Scratch space for the beam search
+    private int[] mSplits = new int[MAX_WORD_LENGTH];
+    private int[] mDigraphs = new int[MAX_WORD_LENGTH];
+    private int mDigraphCount;
+
+    public GreeklishDecoder(Dictionary greekDict) {
+        mGreekDict = greekDict;
+        for (int i = 0; i < BEAM_WIDTH; i++) {
+            mSegmentations[i] = new WordComposer();
+            // The primary reading of a segmentation, e.g. "και" for "kai", is a word
+            mSegmentations[i].setReading(true);
+        }
+    }
+
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback) {
+        getWords(codes, callback, null);
+    }
+
+    /**
+     * Searches the segmentations cheapest first, so that when the budget runs out
+     * the words found are those of the likeliest readings.
+     */
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback,
+            final SearchBudget budget) {
+        final int codesSize = codes.size();
+        if (codesSize > MAX_WORD_LENGTH) return;
+
+        mLatinLength = 0;
+        for (int i = 0; i < codesSize; i++) {
+            int c = Character.toLowerCase(codes.getCodesAt(i)[0]);
+            if (c >= LETTER_CODES.length || LETTER_CODES[c] == null) {
+                // Not greeklish, so don't bother
+                return;
+            }
+            mLatin[mLatinLength++] = (char) c;
+        }
+
+        segment();
+
+        mCallback = callback;
+        for (int i = 0; i < mSegmentationCount; i++) {
+            if (budget != null && budget.isExhausted()) break;
+            mCurrentCost = mCosts[i];
+            mGreekDict.getWords(mSegmentations[i], this, budget);
+        }
+        mCallback = null;
+    }
+
+    /**
+     * Word callback for a single segmentation; penalizes the dictionary
+     * frequency by the cost of the segmentation.
+     */
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+        return mCallback.addWord(word, wordOffset, wordLength, frequency / (1 + mCurrentCost));
+    }
+
+    /**
+     * Finds the cheapest segmentations of the typed Latin letters. Each digraph
+     * read as a single Greek letter costs nothing, and each one read as two
+     * letters costs one. Since digraph choices are independent, the beam grows
+     * by flipping digraphs to two letters from the end of the word backwards,
+     * so that the cheapest segmentations come first.
+     */
+    private void segment() {
+        final char[] latin = mLatin;
+        final int latinLength = mLatinLength;
+
+        // Find non-overlapping digraphs, left to right
+        mDigraphCount = 0;
+        for (int i = 0; i < latinLength - 1; i++) {
+            if (findDigraph(latin, i) >= 0) {
+                mDigraphs[mDigraphCount++] = i;
+                i++;
+            }
+        }
+
+        // Beam: all digraphs merged, then each single digraph split, then pairs, ...
+        mSegmentationCount = 0;
+        int splitCount = 0;
+        while (splitCount <= mDigraphCount && mSegmentationCount < BEAM_WIDTH) {
+            addSegmentations(splitCount, 0, mDigraphCount - 1);
+            splitCount++;
+        }
+    }
+
+    /**
+     * Recursively chooses which digraphs to split, adding a segmentation
+     * once exactly <code>splitCount</code> of them have been chosen.
+     * Digraphs near the end of the word are split first, since that is
+     * where the word is still open.
+     */
+    private void addSegmentations(int splitCount, int chosen, int maxDigraph) {
+        if (mSegmentationCount >= BEAM_WIDTH) {
+            return;
+        }
+        if (chosen == splitCount) {
+            buildSegmentation(mSegmentations[mSegmentationCount], splitCount);
+            mCosts[mSegmentationCount] = splitCount;
+            mSegmentationCount++;
+            return;
+        }
+        for (int d = maxDigraph; d >= splitCount - chosen - 1; d--) {
+            mSplits[chosen] = d;
+            addSegmentations(splitCount, chosen + 1, d - 1);
+        }
+    }
+
+    private void buildSegmentation(WordComposer composer, int splitCount) {
+        final char[] latin = mLatin;
+        final int latinLength = mLatinLength;
+        composer.reset();
+        int nextDigraph = 0;
+        for (int i = 0; i < latinLength; i++) {
+            if (nextDigraph < mDigraphCount && mDigraphs[nextDigraph] == i) {
+                boolean split = false;
+                for (int s = 0; s < splitCount; s++) {
+                    if (mSplits[s] == nextDigraph) {
+                        split = true;
+                        break;
+                    }
+                }
+                nextDigraph++;
+                if (!split) {
+                    int[] codes = DIGRAPH_CODES[findDigraph(latin, i)];
+                    composer.add(codes[0], codes);
+                    i++;
+                    continue;
+                }
+            }
+            int[] codes = LETTER_CODES[latin[i]];
+            composer.add(codes[0], codes);
+        }
+    }
+
+    private static int findDigraph(char[] latin, int offset) {
+        for (int i = 0; i < DIGRAPHS.length; i++) {
+            String digraph = DIGRAPHS[i];
+            if (latin[offset] == digraph.charAt(0) && latin[offset + 1] == digraph.charAt(1)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Latin words are never valid Greek words.
+     */
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        return false;
+    }
+}
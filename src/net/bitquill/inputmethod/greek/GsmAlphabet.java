@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+/**
+ * Tables for the GSM 03.38 default alphabet, used for 7bit SMS messages.
+ * Greek text is transcoded to the Greek subset of the alphabet (upper case only,
+ * no accents, with Latin look-alikes standing in for the missing capitals),
+ * which is what the 7bit keyboards produce.
+ */
+public class GsmAlphabet {
+
+    /** Characters in the GSM default alphabet, other than A-Z, a-z and 0-9 */
+    private static final String BASIC_CHARS =
+        "@£$¥èéùìòÇ\nØø\rÅå" +
+        "Δ_ΦΓΛΩΠΨΣΘΞÆæßÉ" +
+        " !\"#¤%&'()*+,-./:;<=>?¡ÄÖÑÜ§" +
+        "¿äöñüà";
+
+    /** Characters in the GSM extension table, which take two septets */
+    private static final String EXTENSION_CHARS = "\f^{}\\[~]|";
+    private static final char EURO_SIGN = '€';
+
+    /** Greek letters and the characters they are transcoded to */
+    private static final String GREEK_FROM =
+        "ΑΒΓΔΕΖΗΘΙΚΛΜ" +
+        "ΝΞΟΠΡΣΤΥΦΧΨΩ" +
+        "αβγδεζηθικλμ" +
+        "νξοπρστυφχψω" +
+        "ΆΈΉΊΌΎΏΪΫ" +
+        "άέήίόύώϊϋΐΰς" +
+        "\u037e\u0387";  // Greek question mark and ano teleia
+    private static final String GREEK_TO =
+        "ABΓΔEZHΘIKΛMNΞOΠPΣTYΦXΨΩ" +
+        "ABΓΔEZHΘIKΛMNΞOΠPΣTYΦXΨΩ" +
+        "AEHIOYΩIY" +
+        "AEHIOYΩIYIYΣ" +
+        ";.";
+
+    private static final int TABLE_SIZE = 0x400;
+
+    /** Number of septets taken by each character; zero if not in the alphabet */
+    private static final byte[] SEPTETS = new byte[TABLE_SIZE];
+    /** Transcoding of each character (identity, except for Greek) */
+    private static final char[] TRANSCODE = new char[TABLE_SIZE];
+
+    static {
+        for (char c = 'A'; c <= 'Z'; c++) SEPTETS[c] = 1;
+        for (char c = 'a'; c <= 'z'; c++) SEPTETS[c] = 1;
+        for (char c = '0'; c <= '9'; c++) SEPTETS[c] = 1;
+        for (int i = 0; i < BASIC_CHARS.length(); i++) {
+            SEPTETS[BASIC_CHARS.charAt(i)] = 1;
+        }
+        for (int i = 0; i < EXTENSION_CHARS.length(); i++) {
+            SEPTETS[EXTENSION_CHARS.charAt(i)] = 2;
+        }
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            TRANSCODE[i] = (char) i;
+        }
+        for (int i = 0; i < GREEK_FROM.length(); i++) {
+            TRANSCODE[GREEK_FROM.charAt(i)] = GREEK_TO.charAt(i);
+        }
+    }
+
+    private GsmAlphabet() { }
+
+    /**
+     * Returns the number of septets needed to encode a character,
+     * or zero if the character is not in the GSM alphabet.
+     */
+    public static int septets(char c) {
+        if (c < TABLE_SIZE) {
+            return SEPTETS[c];
+        }
+        return c == EURO_SIGN ? 2 : 0;
+    }
+
+    public static char transcode(char c) {
+        return c < TABLE_SIZE ? TRANSCODE[c] : c;
+    }
+
+    /**
+     * Transcodes Greek text to the GSM alphabet.
+     * @return the transcoded text, or the text itself if nothing needed to change
+     */
+    public static CharSequence transcode(CharSequence text) {
+        final int length = text.length();
+        int i = 0;
+        while (i < length && transcode(text.charAt(i)) == text.charAt(i)) {
+            i++;
+        }
+        if (i == length) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        sb.append(text, 0, i);
+        for (; i < length; i++) {
+            sb.append(transcode(text.charAt(i)));
+        }
+        return sb;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.bitquill.inputmethod.greek;
+
+/**
+ * Searches a dictionary of one language with keys typed on the keyboard of the
+ * other, as if each key had been typed at the same place on the other keyboard,
+ * e.g. the Greek letters τρυ as "try".
+ *
+ * The key positions are those of the soft keyboards (kbd_latin.xml and
+ * kbd_greek.xml), where the top row of the Greek keyboard starts with ς rather
+ * than with the accent key.  Alternatives are mapped one by one; a keystroke with
+ * none that maps, such as the accent key, matches no word.
+ */
+public class KeyMappedDictionary extends Dictionary implements Dictionary.WordCallback {
+
+    // Letter keys, row by row; p is where the Greek accent key is, and maps to nothing
+    private static final String LATIN_KEYS = "qwertyuio" + "asdfghjkl" + "zxcvbnm";
+    private static final String GREEK_KEYS = "ςερτυθιοπ" + "ασδφγηξκλ" + "ζχψωβνμ";
+
+    private Dictionary mDictionary;
+    private String mFromKeys;
+    private String mToKeys;
+
+    private WordComposer mComposer = new WordComposer();
+    private WordCallback mCallback;
+
+    /**
+     * @param dictionary the dictionary to search
+     * @param fromLanguage the language of the keyboard typed on, 
+     * {@link KeyboardSwitcher#LANGUAGE_EN} or {@link KeyboardSwitcher#LANGUAGE_EL}; 
+     * the dictionary is of the other
+     */
+    public KeyMappedDictionary(Dictionary dictionary, int fromLanguage) {
+        mDictionary = dictionary;
+        // The word the mapped keys spell was not typed as such, so it is suggested too
+        mComposer.setReading(true);
+        if (fromLanguage == KeyboardSwitcher.LANGUAGE_EL) {
+            mFromKeys = GREEK_KEYS;
+            mToKeys = LATIN_KEYS;
+        } else {
+            mFromKeys = LATIN_KEYS;
+            mToKeys = GREEK_KEYS;
+        }
+    }
+
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback) {
+        getWords(codes, callback, null);
+    }
+
+    @Override
+    public synchronized void getWords(final WordComposer codes, final WordCallback callback,
+            final SearchBudget budget) {
+        final WordComposer mapped = mComposer;
+        mapped.reset();
+        final int size = codes.size();
+        for (int i = 0; i < size; i++) {
+            int[] alternatives = mapKeys(codes.getCodesAt(i));
+            if (alternatives == null) {
+                return;
+            }
+            mapped.add(alternatives[0], alternatives);
+        }
+        mCallback = callback;
+        mDictionary.getWords(mapped, this, budget);
+        mCallback = null;
+    }
+
+    /**
+     * Maps the alternatives of a keystroke to the keys at the same places, keeping
+     * their order and case and dropping those that do not map.
+     * @return the mapped alternatives, or null if none maps
+     */
+    private int[] mapKeys(int[] codes) {
+        int[] mapped = new int[codes.length];
+        int count = 0;
+        for (int i = 0; i < codes.length; i++) {
+            final int code = codes[i];
+            if (code <= 0 || code > Character.MAX_VALUE) {
+                continue;
+            }
+            final char c = (char) code;
+            final int index = mFromKeys.indexOf(UserDictionary.toLowerCase(c));
+            if (index < 0) {
+                continue;
+            }
+            char key = mToKeys.charAt(index);
+            if (Character.isUpperCase(c)) {
+                key = Character.toUpperCase(key);
+            }
+            int k = 0;
+            while (k < count && mapped[k] != key) {
+                k++;
+            }
+            if (k == count) {
+                mapped[count++] = key;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        if (count < mapped.length) {
+            int[] trimmed = new int[count];
+            System.arraycopy(mapped, 0, trimmed, 0, count);
+            mapped = trimmed;
+        }
+        return mapped;
+    }
+
+    public boolean addWord(char[] word, int wordOffset, int wordLength, int frequency) {
+        return mCallback.addWord(word, wordOffset, wordLength, frequency);
+    }
+
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        return mDictionary.isValidWord(word);
+    }
+}
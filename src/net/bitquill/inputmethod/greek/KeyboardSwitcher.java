@@ -36,7 +36,7 @@ public class KeyboardSwitcher {
     
     public static final int LANGUAGE_EN = 0;
     public static final int LANGUAGE_EL = 1;
-    public static final int LANGUAGE_COUNT = 2;
+    public static final int LANGUAGE_COUNT = LanguagePack.PACKS.length;
    
     public static final int KEYBOARDMODE_NORMAL = R.id.mode_normal;
     public static final int KEYBOARDMODE_URL = R.id.mode_url;
@@ -51,17 +51,12 @@ public class KeyboardSwitcher {
     private SoftKeyboard mPhoneKeyboard;
     private SoftKeyboard mPhoneSymbolsKeyboard;
     // Keyboards with language-specific variants
-    private SoftKeyboard[] mSymbolsKeyboard = new SoftKeyboard[2];
-    private SoftKeyboard[] mSymbolsShiftedKeyboard = new SoftKeyboard[2];
-    private SoftKeyboard[] mTextKeyboard = new SoftKeyboard[2];
-    private SoftKeyboard[] mUrlKeyboard = new SoftKeyboard[2];
-    private SoftKeyboard[] mEmailKeyboard = new SoftKeyboard[2];
-    private SoftKeyboard[] mIMKeyboard = new SoftKeyboard[2];
-    
-    private static final int[] XML_RES_ID = new int[]{ R.xml.kbd_latin, R.xml.kbd_greek };
-    private static final int[] XML_7BIT_RES_ID = new int[]{ R.xml.kbd_latin, R.xml.kbd_greek_sms_7bit };
-    private static final int[] XML_MODE_ID = new int[]{ R.id.lang_en, R.id.lang_el };
-    private static final int[] ICON_RES_ID = new int[]{ R.drawable.ime_en, R.drawable.ime_el };
+    private SoftKeyboard[] mSymbolsKeyboard = new SoftKeyboard[LANGUAGE_COUNT];
+    private SoftKeyboard[] mSymbolsShiftedKeyboard = new SoftKeyboard[LANGUAGE_COUNT];
+    private SoftKeyboard[] mTextKeyboard = new SoftKeyboard[LANGUAGE_COUNT];
+    private SoftKeyboard[] mUrlKeyboard = new SoftKeyboard[LANGUAGE_COUNT];
+    private SoftKeyboard[] mEmailKeyboard = new SoftKeyboard[LANGUAGE_COUNT];
+    private SoftKeyboard[] mIMKeyboard = new SoftKeyboard[LANGUAGE_COUNT];
     
     private int mMode;
     private int mLanguage;
@@ -100,7 +95,7 @@ public class KeyboardSwitcher {
         switch (mode) {
             case MODE_TEXT:
                 if (mTextKeyboard[mLanguage] == null) {
-                    mTextKeyboard[mLanguage] = new SoftKeyboard(mContext, XML_RES_ID[mLanguage],
+                    mTextKeyboard[mLanguage] = new SoftKeyboard(mContext, LanguagePack.PACKS[mLanguage].keyboardResId,
                             KEYBOARDMODE_NORMAL);
                     mTextKeyboard[mLanguage].enableShiftLock();
                 }
@@ -109,11 +104,11 @@ public class KeyboardSwitcher {
             case MODE_SYMBOLS:
                 if (mSymbolsKeyboard[mLanguage] == null) {
                     mSymbolsKeyboard[mLanguage] = new SoftKeyboard(mContext, 
-                            R.xml.kbd_symbols, XML_MODE_ID[mLanguage]);
+                            R.xml.kbd_symbols, LanguagePack.PACKS[mLanguage].keyboardModeId);
                 }
                 if (mSymbolsShiftedKeyboard[mLanguage] == null) {
                     mSymbolsShiftedKeyboard[mLanguage] = new SoftKeyboard(mContext, 
-                            R.xml.kbd_symbols_shift, XML_MODE_ID[mLanguage]);
+                            R.xml.kbd_symbols_shift, LanguagePack.PACKS[mLanguage].keyboardModeId);
                 }
                 keyboard = mSymbolsKeyboard[mLanguage];
                 break;
@@ -130,14 +125,14 @@ public class KeyboardSwitcher {
                 break;
             case MODE_URL:
                 if (mUrlKeyboard[mLanguage] == null) {
-                    mUrlKeyboard[mLanguage] = new SoftKeyboard(mContext, XML_RES_ID[mLanguage], KEYBOARDMODE_URL);
+                    mUrlKeyboard[mLanguage] = new SoftKeyboard(mContext, LanguagePack.PACKS[mLanguage].keyboardResId, KEYBOARDMODE_URL);
                     mUrlKeyboard[mLanguage].enableShiftLock();
                 }
                 keyboard = mUrlKeyboard[mLanguage];
                 break;
             case MODE_EMAIL:
                 if (mEmailKeyboard[mLanguage] == null) {
-                    mEmailKeyboard[mLanguage] = new SoftKeyboard(mContext, XML_RES_ID[mLanguage], KEYBOARDMODE_EMAIL);
+                    mEmailKeyboard[mLanguage] = new SoftKeyboard(mContext, LanguagePack.PACKS[mLanguage].keyboardResId, KEYBOARDMODE_EMAIL);
                     mEmailKeyboard[mLanguage].enableShiftLock();
                 }
                 keyboard = mEmailKeyboard[mLanguage];
@@ -145,9 +140,9 @@ public class KeyboardSwitcher {
             case MODE_IM:
                 if (mIMKeyboard[mLanguage] == null) {
                 	if (m7bitMode) {
-                	    mIMKeyboard[mLanguage] = new SoftKeyboard(mContext, XML_7BIT_RES_ID[mLanguage], KEYBOARDMODE_IM);
+                	    mIMKeyboard[mLanguage] = new SoftKeyboard(mContext, LanguagePack.PACKS[mLanguage].keyboard7bitResId, KEYBOARDMODE_IM);
                 	} else {
-                	    mIMKeyboard[mLanguage] = new SoftKeyboard(mContext, XML_RES_ID[mLanguage], KEYBOARDMODE_IM);
+                	    mIMKeyboard[mLanguage] = new SoftKeyboard(mContext, LanguagePack.PACKS[mLanguage].keyboardResId, KEYBOARDMODE_IM);
                 		
                 	}
                     mIMKeyboard[mLanguage].enableShiftLock();
@@ -174,7 +169,7 @@ public class KeyboardSwitcher {
     }
     
     int getLanguageIcon () {
-    	return ICON_RES_ID[mLanguage];
+    	return LanguagePack.PACKS[mLanguage].iconResId;
     }
     
     boolean isTextMode() {
@@ -214,10 +209,10 @@ public class KeyboardSwitcher {
     void toggleSymbols() {
         SoftKeyboard current = (SoftKeyboard)mInputView.getKeyboard();
         if (mSymbolsKeyboard[mLanguage] == null) {
-            mSymbolsKeyboard[mLanguage] = new SoftKeyboard(mContext, R.xml.kbd_symbols, XML_MODE_ID[mLanguage]);
+            mSymbolsKeyboard[mLanguage] = new SoftKeyboard(mContext, R.xml.kbd_symbols, LanguagePack.PACKS[mLanguage].keyboardModeId);
         }
         if (mSymbolsShiftedKeyboard[mLanguage] == null) {
-            mSymbolsShiftedKeyboard[mLanguage] = new SoftKeyboard(mContext, R.xml.kbd_symbols_shift, XML_MODE_ID[mLanguage]);
+            mSymbolsShiftedKeyboard[mLanguage] = new SoftKeyboard(mContext, R.xml.kbd_symbols_shift, LanguagePack.PACKS[mLanguage].keyboardModeId);
         }
         if (current == mSymbolsKeyboard[mLanguage] || current == mSymbolsShiftedKeyboard[mLanguage]) {
             setSoftKeyboardState(mMode, mLanguage, mImeOptions); // Could be qwerty, alpha, url, email or im
@@ -239,11 +234,7 @@ public class KeyboardSwitcher {
     }
     
     void toggleLanguage() {
-    	if (mLanguage == LANGUAGE_EN) {
-    		mLanguage = LANGUAGE_EL;
-    	} else {
-    		mLanguage = LANGUAGE_EN;
-    	}
+    	mLanguage = (mLanguage + 1) % LANGUAGE_COUNT;
     	if (mInputView != null) {
     		setSoftKeyboardState(mMode, mLanguage, mImeOptions);
     	}
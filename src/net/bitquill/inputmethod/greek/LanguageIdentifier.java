@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.bitquill.inputmethod.greek;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * Tells which language is being written from the last few dozen characters:
+ * English, Greek, or Greek in Latin letters (Greeklish).
+ *
+ * Each language has a table of the cost of every character after every
+ * other, as written by <code>dict/el/langid.py</code>.  Each language also
+ * keeps a score; every character adds its cost to it, and the score decays by
+ * 1/32 of itself per character, so older text counts for less.  An update thus
+ * takes constant time.  The language with the lowest score wins, once enough
+ * letters have been seen and no other language comes close.
+ */
+public class LanguageIdentifier {
+    private static final String TAG = "LanguageIdentifier";
+
+    private static final int MAGIC = 0x4c474944; // "LGID"
+    private static final int VERSION = 1;
+
+    public static final int UNKNOWN = -1;
+    public static final int ENGLISH = 0;
+    public static final int GREEK = 1;
+    public static final int GREEKLISH = 2;
+    private static final int LANGUAGE_COUNT = 3;
+
+    // Character classes: non-letters, then a to z, then α to ω
+    private static final int CLASS_COUNT = 52;
+    private static final int GREEK_FIRST = 27;
+
+    private static final int DECAY_SHIFT = 5;
+    /** Letters needed since reset() before there is an answer */
+    private static final int MIN_LETTERS = 6;
+    /** Score by which the best language must beat the others, in sixteenths of a bit */
+    private static final int MIN_MARGIN = 96;
+
+    private final byte[] mCosts;
+    private final int[] mScores = new int[LANGUAGE_COUNT];
+    private int mPrevClass;
+    private int mLetters;
+
+    private LanguageIdentifier(byte[] costs) {
+        mCosts = costs;
+    }
+
+    /**
+     * Reads the tables, closing the stream.
+     * @return the identifier, or null if the tables could not be read
+     */
+    public static LanguageIdentifier load(InputStream in) {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (data.readInt() != MAGIC || data.readUnsignedByte() != VERSION) {
+                Log.e(TAG, "Not a language identification table");
+                return null;
+            }
+            if (data.readUnsignedByte() != LANGUAGE_COUNT 
+                    || data.readUnsignedByte() != CLASS_COUNT) {
+                Log.e(TAG, "Bad language identification table header");
+                return null;
+            }
+            byte[] costs = new byte[LANGUAGE_COUNT * CLASS_COUNT * CLASS_COUNT];
+            data.readFully(costs);
+            return new LanguageIdentifier(costs);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not read language identification table", ioe);
+            return null;
+        } finally {
+            try {
+                data.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+
+    private static int charClass(char c) {
+        c = WordHash.fold(c);
+        if (c >= 'a' && c <= 'z') {
+            return 1 + c - 'a';
+        }
+        if (c >= 'α' && c <= 'ω') {
+            return GREEK_FIRST + c - 'α';
+        }
+        return 0;
+    }
+
+    /**
+     * Forgets all text seen so far.
+     */
+    public void reset() {
+        for (int i = 0; i < LANGUAGE_COUNT; i++) {
+            mScores[i] = 0;
+        }
+        mPrevClass = 0;
+        mLetters = 0;
+    }
+
+    /**
+     * Takes one more character of the text.
+     */
+    public void addChar(char c) {
+        final int cls = charClass(c);
+        if (cls == 0 && mPrevClass == 0) {
+            // Runs of spaces and punctuation count as one
+            return;
+        }
+        final int bigram = mPrevClass * CLASS_COUNT + cls;
+        final int[] scores = mScores;
+        for (int i = 0; i < LANGUAGE_COUNT; i++) {
+            scores[i] += (mCosts[i * CLASS_COUNT * CLASS_COUNT + bigram] & 0xFF)
+                    - (scores[i] >> DECAY_SHIFT);
+        }
+        mPrevClass = cls;
+        if (cls != 0) {
+            mLetters++;
+        }
+    }
+
+    public void addText(CharSequence text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            addChar(text.charAt(i));
+        }
+    }
+
+    /**
+     * Returns the language of the recent text, {@link #ENGLISH}, {@link #GREEK} or
+     * {@link #GREEKLISH}, or {@link #UNKNOWN} if it is not clear yet.
+     */
+    public int getLanguage() {
+        if (mLetters < MIN_LETTERS) {
+            return UNKNOWN;
+        }
+        final int[] scores = mScores;
+        int best = 0;
+        for (int i = 1; i < LANGUAGE_COUNT; i++) {
+            if (scores[i] < scores[best]) best = i;
+        }
+        for (int i = 0; i < LANGUAGE_COUNT; i++) {
+            if (i != best && scores[i] - scores[best] < MIN_MARGIN) {
+                return UNKNOWN;
+            }
+        }
+        return best;
+    }
+}
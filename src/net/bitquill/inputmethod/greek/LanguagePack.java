@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package net.bitquill.inputmethod.greek;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * A language that can be typed: the resources of its keyboards, and the dictionary
+ * its words are suggested from.  The packs are listed in {@link #PACKS}, at the
+ * index of their language constant in {@link KeyboardSwitcher}, and adding a
+ * language is adding a pack there.  Dictionaries are not opened here, but through
+ * the {@link DictionaryRegistry}, when first needed.
+ */
+public abstract class LanguagePack {
+    private static final String TAG = "LanguagePack";
+
+    public final int language;
+    /** Identifies the dictionary file, for sharing it */
+    public final String dictionaryKey;
+    public final int keyboardResId;
+    /** Keyboard for 7bit SMS mode */
+    public final int keyboard7bitResId;
+    /** Mode of the symbol keyboards for this language */
+    public final int keyboardModeId;
+    public final int iconResId;
+
+    public static final LanguagePack[] PACKS = {
+        new LanguagePack(KeyboardSwitcher.LANGUAGE_EN, 
+                "com.android.inputmethod.latin:res/raw-en/main.dict",
+                R.xml.kbd_latin, R.xml.kbd_latin, R.id.lang_en, R.drawable.ime_en) {
+            @Override
+            BinaryDictionary openDictionary(Context context) {
+                // The system does not guarantee its presence
+                try {
+                    return new EnglishBinaryDictionary(context);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to load English dictionary");
+                    return null;
+                }
+            }
+        },
+        new LanguagePack(KeyboardSwitcher.LANGUAGE_EL, "raw/eldict",
+                R.xml.kbd_greek, R.xml.kbd_greek_sms_7bit, R.id.lang_el, R.drawable.ime_el) {
+            @Override
+            BinaryDictionary openDictionary(Context context) {
+                return new GreekBinaryDictionary(context);
+            }
+        },
+    };
+
+    LanguagePack(int language, String dictionaryKey, int keyboardResId, int keyboard7bitResId,
+            int keyboardModeId, int iconResId) {
+        this.language = language;
+        this.dictionaryKey = dictionaryKey;
+        this.keyboardResId = keyboardResId;
+        this.keyboard7bitResId = keyboard7bitResId;
+        this.keyboardModeId = keyboardModeId;
+        this.iconResId = iconResId;
+    }
+
+    /**
+     * Opens the dictionary of the language.  Use {@link DictionaryRegistry#acquire}
+     * instead, which shares it.
+     * @return the dictionary, or null if it is not available
+     */
+    abstract BinaryDictionary openDictionary(Context context);
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Keeps the dictionaries of the language packs loaded while they are used.
+ *
+ * A dictionary is loaded the first time it is asked for, so that a language
+ * that is never typed costs no memory.  The loaded dictionaries are kept in
+ * least recently used order; those not in use are released, the coldest first,
+ * while the native memory of all of them is over the budget.  Dictionaries come
+ * from the {@link DictionaryRegistry}, so they are only unloaded if no other
+ * cache holds them, and they load in the background.
+ */
+public class LanguagePackCache {
+    private static final String TAG = "LanguagePackCache";
+
+    /** Native memory, in bytes, above which dictionaries not in use are unloaded */
+    public static final long DEFAULT_BUDGET = 2 * 1024 * 1024;
+
+    private final Context mContext;
+    private final long mBudget;
+    private final LinkedHashMap<Integer, Future<BinaryDictionary>> mLoaded =
+            new LinkedHashMap<Integer, Future<BinaryDictionary>>(4, 0.75f, true);
+    /** Languages whose dictionary failed to load, which is not retried */
+    private final boolean[] mUnavailable = new boolean[LanguagePack.PACKS.length];
+    /** Native memory of each dictionary loaded, or 0 while it is loading */
+    private final long[] mSizes = new long[LanguagePack.PACKS.length];
+    private long mSize;
+    /** Bit mask of the languages in use */
+    private int mInUse;
+
+    public LanguagePackCache(Context context, long budget) {
+        mContext = context;
+        mBudget = budget;
+    }
+
+    /**
+     * Returns the dictionary of a language, starting to load it if it is not loaded.
+     * It is not unloaded until it is left out of the languages in use.
+     * @return the dictionary, or null if it is not available or still loading
+     * (see {@link #isLoading})
+     */
+    public synchronized BinaryDictionary getDictionary(int language) {
+        Future<BinaryDictionary> future = mLoaded.get(language);
+        if (future == null) {
+            if (mUnavailable[language]) {
+                return null;
+            }
+            future = DictionaryRegistry.acquire(mContext, LanguagePack.PACKS[language]);
+            mLoaded.put(language, future);
+        }
+        mInUse |= 1 << language;
+        return future.isDone() ? getLoaded(language, future) : null;
+    }
+
+    private BinaryDictionary getLoaded(int language, Future<BinaryDictionary> future) {
+        BinaryDictionary dict = DictionaryRegistry.get(future);
+        if (dict == null) {
+            mUnavailable[language] = true;
+            mLoaded.remove(language);
+            DictionaryRegistry.release(LanguagePack.PACKS[language]);
+            return null;
+        }
+        if (mSizes[language] == 0) {
+            mSizes[language] = dict.getSize();
+            mSize += mSizes[language];
+            Log.i(TAG, "Loaded dictionary of language " + language + ", " + mSize
+                    + " bytes in all");
+            trimToSize(mBudget);
+        }
+        return dict;
+    }
+
+    /**
+     * Whether the dictionary of a language is loading.
+     */
+    public synchronized boolean isLoading(int language) {
+        Future<BinaryDictionary> future = mLoaded.get(language);
+        return future != null && !future.isDone();
+    }
+
+    /**
+     * Whether the dictionary of any language in use is loading.
+     */
+    public synchronized boolean isLoading() {
+        for (Map.Entry<Integer, Future<BinaryDictionary>> entry : mLoaded.entrySet()) {
+            if ((mInUse & (1 << entry.getKey())) != 0 && !entry.getValue().isDone()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sets the languages whose dictionaries are in use, and unloads the others
+     * that do not fit the budget.
+     * @param languages a bit mask, with bit <code>1 << language</code> set for
+     * each language in use
+     */
+    public synchronized void setInUse(int languages) {
+        mInUse = languages;
+        trimToSize(mBudget);
+    }
+
+    /**
+     * Unloads the dictionaries not in use, least recently used first, until all
+     * those loaded fit in a size.
+     */
+    public synchronized void trimToSize(long size) {
+        // Looking entries up would reorder them, so only the iterator is used
+        Iterator<Map.Entry<Integer, Future<BinaryDictionary>>> it =
+                mLoaded.entrySet().iterator();
+        while (mSize > size && it.hasNext()) {
+            Map.Entry<Integer, Future<BinaryDictionary>> entry = it.next();
+            final int language = entry.getKey();
+            if ((mInUse & (1 << language)) != 0 || mSizes[language] == 0) {
+                continue;
+            }
+            it.remove();
+            mSize -= mSizes[language];
+            mSizes[language] = 0;
+            DictionaryRegistry.release(LanguagePack.PACKS[language]);
+            Log.i(TAG, "Released dictionary of language " + language);
+        }
+    }
+
+    /**
+     * Returns the native memory, in bytes, of the dictionaries loaded.
+     */
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    /**
+     * Releases all dictionaries.
+     */
+    public synchronized void close() {
+        for (int language : mLoaded.keySet()) {
+            DictionaryRegistry.release(LanguagePack.PACKS[language]);
+        }
+        mLoaded.clear();
+        mSize = 0;
+        Arrays.fill(mSizes, 0);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * A dictionary in the LOUDS format written by <code>trie.py --louds</code>, searched
+ * in Java.  The native library reads the same format; this is for when it is not
+ * available, and for dictionaries too large to keep in the classic format.
+ *
+ * Nodes are numbered in breadth-first order, and the tree shape is kept as a bit
+ * string with each node's children in unary (a one per child, then a zero).  The
+ * children of a node are therefore numbered consecutively, and the first one, and
+ * the position of its own run of bits, are found by rank and select on the bit
+ * string.  Letters, terminal flags and frequencies are kept in separate arrays.
+ */
+public class LoudsDictionary extends Dictionary {
+    private static final String TAG = "LoudsDictionary";
+
+    private static final int MAGIC = 0x474c4453; // "GLDS"
+    /** Zeros per entry of the select directory */
+    private static final int SELECT_SAMPLE_ZEROS = 256;
+
+    private static final int TYPED_LETTER_MULTIPLIER = 2;
+    private static final char QUOTE = '\'';
+
+    private final int mNodeCount;
+    private final char[] mAlphabet;
+    private final long[] mStructure;
+    private final int[] mStructureRanks;
+    private final int[] mSelectSamples;
+    private final long[] mTerminals;
+    private final int[] mTerminalRanks;
+    private final byte[] mLabels;
+    private final byte[] mFrequencies;
+
+    // Search state
+    private WordComposer mCodes;
+    private WordCallback mCallback;
+    private int mInputLength;
+    private int mMaxDepth;
+    private char[] mWord = new char[BinaryDictionary.MAX_WORD_LENGTH];
+    /** Search stack, one frame per letter of the word being composed */
+    private Frame[] mFrames = new Frame[BinaryDictionary.MAX_WORD_LENGTH];
+
+    /**
+     * The children of one node being walked by {@link #getWordsIter}, and the search
+     * state at them.
+     */
+    private static class Frame {
+        int node;
+        int remaining;
+        int nextAddress;
+        int freqIndex;
+        int depth;
+        boolean completion;
+        int snr;
+        int inputIndex;
+        int[] currentChars;
+    }
+
+    private LoudsDictionary(DataInputStream in) throws IOException {
+        mNodeCount = in.readInt();
+        final int wordCount = in.readInt();
+        final int alphabetSize = in.readInt();
+        mAlphabet = new char[alphabetSize];
+        for (int i = 0; i < alphabetSize; i++) {
+            mAlphabet[i] = in.readChar();
+        }
+        final int structureLength = 2 * mNodeCount - 1;
+        mStructure = readBits(in, structureLength);
+        mTerminals = readBits(in, mNodeCount);
+        mLabels = new byte[mNodeCount - 1];
+        in.readFully(mLabels);
+        mFrequencies = new byte[wordCount];
+        in.readFully(mFrequencies);
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new Frame();
+        }
+
+        mStructureRanks = buildRanks(mStructure);
+        mTerminalRanks = buildRanks(mTerminals);
+        mSelectSamples = new int[mNodeCount / SELECT_SAMPLE_ZEROS + 2];
+        int word = 0;
+        for (int j = 0; j < mSelectSamples.length; j++) {
+            final int k = j * SELECT_SAMPLE_ZEROS + 1;
+            while (word + 1 < mStructure.length
+                    && (word + 1) * 64 - mStructureRanks[word + 1] < k) {
+                word++;
+            }
+            mSelectSamples[j] = word;
+        }
+    }
+
+    /**
+     * Reads a dictionary, closing the stream.
+     * @return the dictionary, or null if it could not be read
+     */
+    public static LoudsDictionary load(InputStream in) {
+        long startTime = System.currentTimeMillis();
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        try {
+            if (data.readInt() != MAGIC) {
+                Log.e(TAG, "Not a LOUDS dictionary");
+                return null;
+            }
+            LoudsDictionary dict = new LoudsDictionary(data);
+            Log.i(TAG, "Loaded dictionary in " + (System.currentTimeMillis() - startTime) + "msec");
+            return dict;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not read dictionary", ioe);
+            return null;
+        } finally {
+            try {
+                data.close();
+            } catch (IOException ioe) {
+                // Ignore
+            }
+        }
+    }
+
+    /**
+     * Returns the memory held by the dictionary, in bytes.
+     */
+    public long getSize() {
+        return 8L * (mStructure.length + mTerminals.length)
+                + 4L * (mStructureRanks.length + mTerminalRanks.length + mSelectSamples.length)
+                + mLabels.length + mFrequencies.length + 2 * mAlphabet.length;
+    }
+
+    /**
+     * Reads a bit vector stored most significant bit first, padded to whole bytes,
+     * into longs holding bit i at position 63 - (i % 64) of long i / 64.
+     */
+    private static long[] readBits(DataInputStream in, int length) throws IOException {
+        final int bytes = (length + 7) / 8;
+        long[] bits = new long[(bytes + 7) / 8];
+        for (int i = 0; i < bytes; i++) {
+            bits[i >> 3] |= (long) in.readUnsignedByte() << (56 - 8 * (i & 7));
+        }
+        return bits;
+    }
+
+    /** ranks[w] is the number of ones before long w */
+    private static int[] buildRanks(long[] bits) {
+        int[] ranks = new int[bits.length + 1];
+        for (int w = 0; w < bits.length; w++) {
+            ranks[w + 1] = ranks[w] + Long.bitCount(bits[w]);
+        }
+        return ranks;
+    }
+
+    private static boolean getBit(long[] bits, int i) {
+        return (bits[i >> 6] << (i & 63)) < 0;
+    }
+
+    /** Number of ones before bit i */
+    private static int rank1(long[] bits, int[] ranks, int i) {
+        final int shift = i & 63;
+        final int ones = ranks[i >> 6];
+        return shift == 0 ? ones : ones + Long.bitCount(bits[i >> 6] >>> (64 - shift));
+    }
+
+    /** Position of the k-th zero (counting from 1) of the structure */
+    private int select0(int k) {
+        final int sample = (k - 1) / SELECT_SAMPLE_ZEROS;
+        int w = mSelectSamples[sample];
+        final int last = mSelectSamples[sample + 1];
+        while (w < last && (w + 1) * 64 - mStructureRanks[w + 1] < k) {
+            w++;
+        }
+        k -= w * 64 - mStructureRanks[w];
+        int i = w * 64;
+        for (;; i++) {
+            if (!getBit(mStructure, i) && --k == 0) break;
+        }
+        return i;
+    }
+
+    /** Number of children of the node whose run starts at the given position */
+    private int getDegree(int address) {
+        int end = address;
+        while (getBit(mStructure, end)) {
+            end++;
+        }
+        return end - address;
+    }
+
+    private char getLetter(int node) {
+        return mAlphabet[mLabels[node - 1] & 0xFF];
+    }
+
+    private static char toLowerCase(char c, int depth) {
+        if (c < UserDictionary.BASE_CHARS.length) {
+            c = UserDictionary.BASE_CHARS[c];
+        }
+        return depth == 0 ? Character.toLowerCase(c) : c;
+    }
+
+    @Override
+    public void getWords(final WordComposer codes, final WordCallback callback) {
+        getWords(codes, callback, null);
+    }
+
+    @Override
+    public synchronized void getWords(final WordComposer codes, final WordCallback callback,
+            final SearchBudget budget) {
+        mCodes = codes;
+        mCallback = callback;
+        mInputLength = codes.size();
+        mMaxDepth = Math.min(mInputLength * 3, mWord.length - 1);
+        getWordsIter(budget);
+        mCodes = null;
+        mCallback = null;
+    }
+
+    /**
+     * Same search as the native <code>Dictionary::getWordsIter</code>, on an explicit
+     * stack of frames rather than by recursion.
+     * @param budget the budget to spend a node from for each node visited, or null
+     */
+    private void getWordsIter(SearchBudget budget) {
+        int top = 0;
+        if (pushFrame(top, 0, 0, false, 1, 0)) top++;
+        while (top > 0) {
+            final Frame frame = mFrames[top - 1];
+            if (frame.remaining == 0) {
+                top--;
+                continue;
+            }
+            if (budget != null && !budget.spend()) {
+                return;
+            }
+            frame.remaining--;
+            final int node = frame.node++;
+            final int depth = frame.depth;
+            final int snr = frame.snr;
+            final int inputIndex = frame.inputIndex;
+            final int[] currentChars = frame.currentChars;
+            final char c = getLetter(node);
+            final char lowerC = toLowerCase(c, depth);
+            final boolean terminal = getBit(mTerminals, node);
+            final int freq = terminal ? mFrequencies[frame.freqIndex++] & 0xFF : 1;
+            final int childrenAddress = frame.nextAddress;
+            final int childDegree = getDegree(childrenAddress);
+            frame.nextAddress += childDegree + 1;
+            // Optimization: Prune out words that are too long compared to how much was typed.
+            final boolean hasChildren = childDegree > 0 && depth < mMaxDepth;
+
+            if (frame.completion) {
+                mWord[depth] = c;
+                if (terminal) {
+                    mCallback.addWord(mWord, 0, depth + 1, freq * snr);
+                }
+                if (hasChildren && pushFrame(top, childrenAddress, depth + 1, true, snr,
+                        inputIndex)) {
+                    top++;
+                }
+            } else if (c == QUOTE && currentChars[0] != QUOTE) {
+                // Skip the ' and continue deeper
+                mWord[depth] = QUOTE;
+                if (hasChildren && pushFrame(top, childrenAddress, depth + 1, false, snr,
+                        inputIndex)) {
+                    top++;
+                }
+            } else {
+                // A letter that matches more than one alternative takes the heaviest one
+                for (int j = 0; j < currentChars.length && currentChars[j] > 0; j++) {
+                    final int addedWeight = j == 0 ? TYPED_LETTER_MULTIPLIER : 1;
+                    if (currentChars[j] != lowerC && currentChars[j] != c) {
+                        continue;
+                    }
+                    mWord[depth] = c;
+                    final boolean last = mInputLength == inputIndex + 1;
+                    if (last && terminal && (mCodes.isReading()
+                            || !same(mWord, depth + 1, mCodes.getTypedWord()))) {
+                        mCallback.addWord(mWord, 0, depth + 1,
+                                freq * snr * addedWeight * FULL_WORD_FREQ_MULTIPLIER);
+                    }
+                    if (hasChildren && pushFrame(top, childrenAddress, depth + 1, last,
+                            snr * addedWeight, inputIndex + 1)) {
+                        top++;
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets up a frame for the children of a node.
+     * @param address position of the node's run in the structure
+     * @return false if the node has no children
+     */
+    private boolean pushFrame(int index, int address, int depth, boolean completion, int snr,
+            int inputIndex) {
+        final int count = getDegree(address);
+        if (count == 0) {
+            return false;
+        }
+        final Frame frame = mFrames[index];
+        frame.node = rank1(mStructure, mStructureRanks, address) + 1;
+        frame.remaining = count;
+        frame.nextAddress = select0(frame.node) + 1;
+        frame.freqIndex = rank1(mTerminals, mTerminalRanks, frame.node);
+        frame.depth = depth;
+        frame.snr = snr;
+        frame.inputIndex = inputIndex;
+        if (mInputLength <= inputIndex) {
+            frame.completion = true;
+            frame.currentChars = null;
+        } else {
+            frame.completion = completion;
+            frame.currentChars = mCodes.getCodesAt(inputIndex);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isValidWord(CharSequence word) {
+        if (word == null || word.length() == 0) return false;
+        return getFrequencyRec(0, word.toString().toLowerCase(), 0, false) > 0;
+    }
+
+    @Override
+    public int getFrequency(CharSequence word) {
+        if (word == null || word.length() == 0) return 0;
+        return getFrequencyRec(0, word, 0, true);
+    }
+
+    /**
+     * Returns the highest frequency of the words matching the given one, compared
+     * exactly or after folding, or zero if there are none.
+     */
+    private int getFrequencyRec(int address, CharSequence word, int offset, boolean fold) {
+        final int count = getDegree(address);
+        if (count == 0) {
+            return 0;
+        }
+        char currentChar = word.charAt(offset);
+        if (fold) currentChar = WordHash.fold(currentChar);
+        final boolean last = offset == word.length() - 1;
+        int node = rank1(mStructure, mStructureRanks, address) + 1;
+        int childrenAddress = select0(node) + 1;
+        int best = 0;
+        for (int i = 0; i < count; i++, node++) {
+            final int childDegree = getDegree(childrenAddress);
+            char c = getLetter(node);
+            if (fold) c = WordHash.fold(c);
+            if (c == currentChar) {
+                if (last) {
+                    if (getBit(mTerminals, node)) {
+                        final int freq = mFrequencies[rank1(mTerminals, mTerminalRanks, node)] & 0xFF;
+                        best = Math.max(best, freq);
+                    }
+                } else if (childDegree > 0) {
+                    best = Math.max(best, getFrequencyRec(childrenAddress, word, offset + 1, fold));
+                }
+                // Without folding there is at most one match
+                if (!fold) break;
+            }
+            childrenAddress += childDegree + 1;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+/**
+ * Bounds the work of finding suggestions for one keystroke, in trie nodes visited
+ * and in time.  {@link #start()} is called before each keystroke's search; the
+ * dictionaries searched for it then spend from the same budget, and stop early
+ * when it runs out, keeping the words found so far.  The budget is then
+ * exhausted, and the suggestions partial.
+ */
+public class SearchBudget {
+    /** No limit, on either nodes or microseconds */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /** Nodes visited between looks at the clock; a power of two */
+    private static final int CLOCK_INTERVAL = 256;
+
+    private final int mMaxNodes;
+    private final int mMaxMicros;
+    private int mNodesLeft;
+    private long mDeadline;
+    private boolean mExhausted;
+
+    /**
+     * @param maxNodes the most trie nodes to visit, or {@link #UNLIMITED}
+     * @param maxMicros the most time to spend, in microseconds, or {@link #UNLIMITED}
+     */
+    public SearchBudget(int maxNodes, int maxMicros) {
+        mMaxNodes = maxNodes;
+        mMaxMicros = maxMicros;
+        start();
+    }
+
+    /**
+     * Starts spending the whole budget again.
+     */
+    public void start() {
+        mNodesLeft = mMaxNodes;
+        mDeadline = mMaxMicros == UNLIMITED
+                ? Long.MAX_VALUE : System.nanoTime() + mMaxMicros * 1000L;
+        mExhausted = false;
+    }
+
+    /**
+     * Spends one node.
+     * @return false if the budget ran out, and the search should stop
+     */
+    public boolean spend() {
+        if (mNodesLeft == 0 || mExhausted) {
+            mExhausted = true;
+            return false;
+        }
+        if ((--mNodesLeft & (CLOCK_INTERVAL - 1)) == 0 && System.nanoTime() > mDeadline) {
+            mExhausted = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Spends what a search done elsewhere (e.g., in native code, given
+     * {@link #getNodesLeft()} and {@link #getMicrosLeft()}) used.
+     * @param nodes the nodes it visited
+     * @param partial whether it stopped because the budget ran out
+     */
+    public void spend(int nodes, boolean partial) {
+        mNodesLeft = Math.max(0, mNodesLeft - nodes);
+        mExhausted |= partial;
+    }
+
+    public int getNodesLeft() {
+        return mExhausted ? 0 : mNodesLeft;
+    }
+
+    public int getMicrosLeft() {
+        if (mExhausted) return 0;
+        if (mDeadline == Long.MAX_VALUE) return UNLIMITED;
+        return (int) Math.max(0, Math.min(UNLIMITED, (mDeadline - System.nanoTime()) / 1000));
+    }
+
+    /**
+     * Whether a search stopped early since {@link #start()}, so that its results
+     * may be missing words.
+     */
+    public boolean isExhausted() {
+        return mExhausted;
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Keeps count of the characters and SMS segments of the text being edited.
+ *
+ * We keep a copy of the text before the cursor, and on every selection update
+ * re-read only the last few characters (enough to cover the word that was just
+ * composed or replaced) plus whatever was inserted, so each edit costs time
+ * proportional to its own size and not to the whole message.  We also keep a
+ * copy of the text after the cursor: as long as its first few characters are
+ * unchanged, the edit was at the cursor and its counts stay the same.  Only
+ * when they change, e.g. when the cursor is moved, do we count everything again.
+ */
+public class SmsCounter {
+
+    private static final int SEPTETS_SINGLE = 160;
+    private static final int SEPTETS_MULTI = 153;
+    private static final int UNITS_SINGLE = 70;
+    private static final int UNITS_MULTI = 67;
+
+    /** Most text we read back from the editor */
+    private static final int MAX_TEXT = 4096;
+    /** Characters before the previous cursor that are re-read on each update */
+    private static final int REVERIFY_LENGTH = BinaryDictionary.MAX_WORD_LENGTH;
+
+    private StringBuilder mBefore = new StringBuilder(SEPTETS_SINGLE);
+    /** Offset of the start of mBefore in the field */
+    private int mBeforeStart;
+    private int mCursor = -1;
+
+    private int mSeptets;
+    private int mUnits;
+    private int mNonGsm;
+
+    private StringBuilder mAfter = new StringBuilder();
+    private int mAfterSeptets;
+    private int mAfterUnits;
+    private int mAfterNonGsm;
+
+    private void add(char c) {
+        int septets = GsmAlphabet.septets(c);
+        if (septets == 0) mNonGsm++;
+        mSeptets += septets;
+        mUnits++;
+    }
+
+    private void remove(char c) {
+        int septets = GsmAlphabet.septets(c);
+        if (septets == 0) mNonGsm--;
+        mSeptets -= septets;
+        mUnits--;
+    }
+
+    private void truncate(int length) {
+        final StringBuilder before = mBefore;
+        for (int i = before.length() - 1; i >= length; i--) {
+            remove(before.charAt(i));
+        }
+        before.setLength(length);
+    }
+
+    private void append(CharSequence text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            add(c);
+            mBefore.append(c);
+        }
+    }
+
+    /**
+     * Forgets everything; the next update will re-read the field.
+     */
+    public void reset() {
+        truncate(0);
+        mBeforeStart = 0;
+        mCursor = -1;
+        mAfter.setLength(0);
+        mAfterSeptets = mAfterUnits = mAfterNonGsm = 0;
+    }
+
+    /**
+     * Re-reads the whole field around the cursor.
+     */
+    public void resync(InputConnection ic, int cursor) {
+        reset();
+        if (ic == null) return;
+        CharSequence before = ic.getTextBeforeCursor(MAX_TEXT, 0);
+        if (before != null) {
+            append(before);
+        }
+        mBeforeStart = cursor - mBefore.length();
+        CharSequence after = ic.getTextAfterCursor(MAX_TEXT, 0);
+        if (after != null) {
+            mAfter.append(after);
+            final int length = after.length();
+            for (int i = 0; i < length; i++) {
+                int septets = GsmAlphabet.septets(after.charAt(i));
+                if (septets == 0) mAfterNonGsm++;
+                mAfterSeptets += septets;
+            }
+            mAfterUnits = length;
+        }
+        mCursor = cursor;
+    }
+
+    /**
+     * Updates the counts after the selection changed.
+     * @param ic the current input connection
+     * @param selStart new selection start
+     * @param selEnd new selection end
+     */
+    public void update(InputConnection ic, int selStart, int selEnd) {
+        if (selStart != selEnd) {
+            // Text is selected, so it's about to be replaced; wait until it is
+            return;
+        }
+        final int cursor = selEnd;
+        if (ic == null || mCursor < 0 || cursor < mBeforeStart || !isAfterUnchanged(ic)) {
+            // Cursor moved, or text after it changed
+            resync(ic, cursor);
+            return;
+        }
+        // Re-read from a little before the old cursor, in case the last word was replaced
+        final int keep = Math.max(mBeforeStart, Math.min(mCursor, cursor) - REVERIFY_LENGTH);
+        if (cursor - keep > MAX_TEXT) {
+            resync(ic, cursor);
+            return;
+        }
+        CharSequence tail = ic.getTextBeforeCursor(cursor - keep, 0);
+        if (tail == null || tail.length() != cursor - keep) {
+            resync(ic, cursor);
+            return;
+        }
+        truncate(keep - mBeforeStart);
+        append(tail);
+        mCursor = cursor;
+    }
+
+    /**
+     * Checks whether the cursor moved forward since the last update because text
+     * was inserted before it, rather than because it moved over existing text:
+     * the text after the cursor must be the same as before, and so must the
+     * text just before where the cursor was.
+     * @param ic the current input connection
+     * @param cursor new cursor position
+     */
+    public boolean isInsertion(InputConnection ic, int cursor) {
+        if (ic == null || mCursor < 0 || cursor <= mCursor || !isAfterUnchanged(ic)) {
+            return false;
+        }
+        final int check = Math.min(mBefore.length(), REVERIFY_LENGTH);
+        final int length = cursor - mCursor + check;
+        CharSequence before = ic.getTextBeforeCursor(length, 0);
+        if (before == null || before.length() != length) {
+            return false;
+        }
+        final int offset = mBefore.length() - check;
+        for (int i = 0; i < check; i++) {
+            if (before.charAt(i) != mBefore.charAt(offset + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the text after the cursor starts as it did at the last
+     * update; if the cursor had moved, it would start with other text.
+     */
+    private boolean isAfterUnchanged(InputConnection ic) {
+        final StringBuilder expected = mAfter;
+        final int length = Math.min(expected.length(), REVERIFY_LENGTH + 1);
+        CharSequence after = ic.getTextAfterCursor(REVERIFY_LENGTH + 1, 0);
+        if (after == null || after.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (after.charAt(i) != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isUnicode() {
+        return mNonGsm + mAfterNonGsm > 0;
+    }
+
+    /**
+     * Returns the length of the message, in septets if it fits the GSM alphabet,
+     * otherwise in UCS-2 characters.
+     */
+    public int getLength() {
+        return isUnicode() ? mUnits + mAfterUnits : mSeptets + mAfterSeptets;
+    }
+
+    public int getSegmentCount() {
+        final int length = getLength();
+        final boolean unicode = isUnicode();
+        final int single = unicode ? UNITS_SINGLE : SEPTETS_SINGLE;
+        final int multi = unicode ? UNITS_MULTI : SEPTETS_MULTI;
+        if (length <= single) {
+            return 1;
+        }
+        return (length + multi - 1) / multi;
+    }
+
+    /**
+     * Returns the length that fits in the current number of segments.
+     */
+    public int getCapacity() {
+        final int segments = getSegmentCount();
+        if (segments == 1) {
+            return isUnicode() ? UNITS_SINGLE : SEPTETS_SINGLE;
+        }
+        return segments * (isUnicode() ? UNITS_MULTI : SEPTETS_MULTI);
+    }
+}
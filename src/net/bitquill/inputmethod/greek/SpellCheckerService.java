@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+
+/**
+ * Lets other applications check Greek spelling against the IME's dictionary.
+ *
+ * Clients bind with the {@link #ACTION_SPELL_CHECK} action and talk to the service
+ * through a {@link Messenger}.  A {@link #MSG_CHECK_WORDS} request carries many
+ * words in its data bundle, under {@link #KEY_WORDS}; the reply, a
+ * {@link #MSG_WORDS_CHECKED} message sent to <code>replyTo</code> with the
+ * request's <code>arg1</code>, holds:
+ * <ul>
+ * <li>{@link #KEY_VALID}: a boolean for each word</li>
+ * <li>{@link #KEY_SUGGESTION_COUNTS}: the number of suggestions for each word</li>
+ * <li>{@link #KEY_SUGGESTIONS}: all suggestions, word after word</li>
+ * </ul>
+ * If the dictionary could not be loaded, the reply is a {@link #MSG_CHECK_FAILED}
+ * message instead, with the same <code>arg1</code>.  Clients must hold the
+ * {@link #PERMISSION_SPELL_CHECK} permission, which only applications signed
+ * with the same key as the IME are granted.
+ *
+ * All clients share one dictionary.  Requests are answered on a small pool of
+ * worker threads, and recent answers are cached.
+ */
+public class SpellCheckerService extends Service {
+    private static final String TAG = "SpellCheckerService";
+
+    public static final String ACTION_SPELL_CHECK =
+        "net.bitquill.inputmethod.greek.SPELL_CHECK";
+
+    public static final int MSG_CHECK_WORDS = 1;
+    public static final int MSG_WORDS_CHECKED = 2;
+    public static final int MSG_CHECK_FAILED = 3;
+
+    public static final String PERMISSION_SPELL_CHECK =
+        "net.bitquill.inputmethod.greek.permission.SPELL_CHECK";
+
+    public static final String KEY_WORDS = "words";
+    public static final String KEY_VALID = "valid";
+    public static final String KEY_SUGGESTION_COUNTS = "suggestion_counts";
+    public static final String KEY_SUGGESTIONS = "suggestions";
+
+    private static final int WORKER_THREADS = 2;
+    private static final int CACHE_SIZE = 1024;
+    /** How long to wait for the requests in progress when the service is destroyed */
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+
+    private static final String[] NO_SUGGESTIONS = new String[0];
+
+    private Future<BinaryDictionary> mDictionary;
+    private BatchSpellChecker mSpellChecker;
+    private ExecutorService mWorkers;
+
+    /**
+     * Recent answers: null suggestions for valid words. Access is synchronized
+     * on the map itself.
+     */
+    private LinkedHashMap<String, String[]> mCache =
+            new LinkedHashMap<String, String[]>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Messenger mMessenger = new Messenger(new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_CHECK_WORDS:
+                    final Messenger replyTo = msg.replyTo;
+                    final int requestId = msg.arg1;
+                    final String[] words = msg.getData().getStringArray(KEY_WORDS);
+                    if (replyTo == null || words == null) {
+                        return;
+                    }
+                    mWorkers.execute(new Runnable() {
+                        public void run() {
+                            checkWords(replyTo, requestId, words);
+                        }
+                    });
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    });
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // Shared with the IME, if it is running; the spell checker is made as soon
+        // as it has loaded, so that its index is ready by the first request
+        mDictionary = DictionaryRegistry.acquire(this,
+                LanguagePack.PACKS[KeyboardSwitcher.LANGUAGE_EL]);
+        mWorkers = Executors.newFixedThreadPool(WORKER_THREADS);
+        mWorkers.execute(new Runnable() {
+            public void run() {
+                getSpellChecker();
+            }
+        });
+    }
+
+    @Override
+    public void onDestroy() {
+        // Let the requests in progress finish before the dictionary is released
+        mWorkers.shutdown();
+        try {
+            if (!mWorkers.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Requests still running at shutdown");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (mSpellChecker != null) {
+                mSpellChecker.close();
+            }
+        }
+        DictionaryRegistry.release(LanguagePack.PACKS[KeyboardSwitcher.LANGUAGE_EL]);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    /**
+     * Returns the spell checker, or null if the dictionary is not available.
+     */
+    private synchronized BatchSpellChecker getSpellChecker() {
+        if (mSpellChecker == null) {
+            BinaryDictionary dict = DictionaryRegistry.get(mDictionary);
+            if (dict == null) {
+                return null;
+            }
+            mSpellChecker = new BatchSpellChecker(dict, null);
+        }
+        return mSpellChecker;
+    }
+
+    private void checkWords(Messenger replyTo, int requestId, String[] words) {
+        final int count = words.length;
+        String[][] answers = new String[count][];
+        boolean[] cached = new boolean[count];
+
+        // Answer what we can from the cache, and check the rest in one batch
+        ArrayList<String> missing = new ArrayList<String>();
+        synchronized (mCache) {
+            for (int i = 0; i < count; i++) {
+                if (mCache.containsKey(words[i])) {
+                    answers[i] = mCache.get(words[i]);
+                    cached[i] = true;
+                } else {
+                    missing.add(words[i]);
+                }
+            }
+        }
+        if (missing.size() > 0) {
+            BatchSpellChecker spellChecker = getSpellChecker();
+            if (spellChecker == null) {
+                send(replyTo, Message.obtain(null, MSG_CHECK_FAILED, requestId, 0));
+                return;
+            }
+            String[][] checked = spellChecker.checkWords(missing);
+            int next = 0;
+            synchronized (mCache) {
+                for (int i = 0; i < count; i++) {
+                    if (!cached[i]) {
+                        answers[i] = checked[next++];
+                        mCache.put(words[i], answers[i]);
+                    }
+                }
+            }
+        }
+
+        boolean[] valid = new boolean[count];
+        int[] suggestionCounts = new int[count];
+        ArrayList<String> suggestions = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            valid[i] = answers[i] == null;
+            String[] wordSuggestions = valid[i] ? NO_SUGGESTIONS : answers[i];
+            suggestionCounts[i] = wordSuggestions.length;
+            for (String suggestion : wordSuggestions) {
+                suggestions.add(suggestion);
+            }
+        }
+
+        Bundle data = new Bundle();
+        data.putBooleanArray(KEY_VALID, valid);
+        data.putIntArray(KEY_SUGGESTION_COUNTS, suggestionCounts);
+        data.putStringArray(KEY_SUGGESTIONS, suggestions.toArray(new String[suggestions.size()]));
+        Message reply = Message.obtain(null, MSG_WORDS_CHECKED);
+        reply.arg1 = requestId;
+        reply.setData(data);
+        send(replyTo, reply);
+    }
+
+    private static void send(Messenger replyTo, Message reply) {
+        try {
+            replyTo.send(reply);
+        } catch (RemoteException re) {
+            Log.w(TAG, "Client went away before the reply");
+        }
+    }
+}
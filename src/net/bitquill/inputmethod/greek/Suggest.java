@@ -26,28 +26,73 @@ import android.view.View;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This class loads a dictionary and provides a list of suggestions for a given sequence of 
  * characters. This includes corrections and completions.
+ *
+ * The user dictionary and the active dictionary are searched at the same time, each
+ * into its own {@link Collector}, and their best words are then merged.  In
+ * bilingual mode, the dictionary of the other language is searched along with them,
+ * through the keys at the same places on its keyboard.
  * @hide pending API Council Approval
  */
-public class Suggest implements Dictionary.WordCallback {
+public class Suggest {
     private static final String TAG = "Suggest";
 
     public static final int CORRECTION_NONE = 0;
     public static final int CORRECTION_BASIC = 1;
     public static final int CORRECTION_FULL = 2;
+
+    /** How much work to spend on the suggestions for a keystroke, for battery or latency */
+    public static final int EFFORT_SAVER = 0;
+    public static final int EFFORT_BALANCED = 1;
+    public static final int EFFORT_THOROUGH = 2;
+
+    // Trie nodes visited and microseconds spent per keystroke, for each effort
+    private static final int[] EFFORT_NODES = { 2048, 8192, 65536 };
+    private static final int[] EFFORT_MICROS = { 10000, 25000, 100000 };
+
+    // Sources of suggestions, in the order they win ties
+    private static final int SOURCE_USER = 0;
+    private static final int SOURCE_MAIN = 1;
+    private static final int SOURCE_OTHER = 2;
+    private static final int SOURCE_COUNT = 3;
+
+    /** Percent of their frequency that words of the other language keep, in bilingual mode */
+    private static final int OTHER_LANGUAGE_WEIGHT = 50;
     
-    private Dictionary mGreekDict;
-    private Dictionary mEnglishDict;  // may be null, since system does not guarantee it's presence
+    /** Loads the dictionaries of the languages used, and unloads the others */
+    private LanguagePackCache mPacks;
     private Dictionary mActiveDict;
+    private Dictionary mOtherDict;
+    // Dictionaries searched through another, kept while the one they search is loaded
+    private GreeklishDecoder mGreeklishDecoder;
+    private Dictionary mDecodedDict;
+    private Dictionary mKeyMappedDict;
+    private Dictionary mKeyMappedBase;
+    private int mLanguage;
+    /** Whether a dictionary in use is still loading */
+    private boolean mLoading;
+    private boolean mTransliterate;
+    private boolean mBilingual;
     
     private Dictionary mUserDictionary;
     
+    private UserNgramStore mNgramStore;
+    private int mNgramContextId = UserNgramStore.NO_CONTEXT;
+    
     private int mPrefMaxSuggestions = 12;
     
-    private int[] mPriorities = new int[mPrefMaxSuggestions];
+    private Collector[] mCollectors = new Collector[SOURCE_COUNT];
+    private Future<?>[] mFutures = new Future<?>[SOURCE_COUNT];
+    private int[] mMergeNext = new int[SOURCE_COUNT];
+    /** Searches all sources but the main one, which is searched by the calling thread */
+    private ExecutorService mExecutor = Executors.newFixedThreadPool(SOURCE_COUNT - 1);
     private List<CharSequence> mSuggestions = new ArrayList<CharSequence>();
     private boolean mIncludeTypedWordIfValid;
     private List<CharSequence> mStringPool = new ArrayList<CharSequence>();
@@ -57,25 +102,44 @@ public class Suggest implements Dictionary.WordCallback {
     private String mLowerOriginalWord;
 
     private int mCorrectionMode = CORRECTION_BASIC;
+    private int mSearchEffort = EFFORT_BALANCED;
+
+    /** Shortest typed word that we try to split into several words */
+    private static final int MIN_SEGMENTATION_LENGTH = 5;
+    private static final int MAX_SEGMENTATION_LENGTH = BinaryDictionary.MAX_WORD_LENGTH - 1;
+    /** Log-probability penalty for each additional word in a segmentation */
+    private static final double SEGMENT_PENALTY = Math.log(0.25);
+    
+    // Scratch space for segmentation
+    private char[] mSegmentInput = new char[MAX_SEGMENTATION_LENGTH];
+    private int[] mSegmentFreqs = new int[MAX_SEGMENTATION_LENGTH];
+    private char[] mSegmentChars = 
+            new char[MAX_SEGMENTATION_LENGTH * MAX_SEGMENTATION_LENGTH];
+    private double[] mSegmentScores = new double[MAX_SEGMENTATION_LENGTH + 1];
+    private int[] mSegmentStarts = new int[MAX_SEGMENTATION_LENGTH + 1];
+    private char[] mSegmentWords = 
+            new char[(MAX_SEGMENTATION_LENGTH + 1) * MAX_SEGMENTATION_LENGTH];
 
 
-    public Suggest(Context context) {
+    /**
+     * @param language the language of the keyboard typed on, as for
+     * {@link #setDictionaryLanguage}; nothing is loaded until that or one of the
+     * other settings is set
+     */
+    public Suggest(Context context, int language) {
         mContext = context;
         
-        mGreekDict = new GreekBinaryDictionary(context);
-        Log.i(TAG, "Loaded Greek dictionary");
-        try {
-            mEnglishDict = new EnglishBinaryDictionary(context);
-            Log.i(TAG, "Loaded English dictionary");
-        } catch (Exception e) {
-            Log.e(TAG, "Failed to load English dictionary");
-        }
-        setDictionaryLanguage(KeyboardSwitcher.LANGUAGE_EN);
+        mPacks = new LanguagePackCache(context, LanguagePackCache.DEFAULT_BUDGET);
+        mLanguage = language;
         
         for (int i = 0; i < mPrefMaxSuggestions; i++) {
             StringBuilder sb = new StringBuilder(32);
             mStringPool.add(sb);
         }
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mCollectors[i] = new Collector(mPrefMaxSuggestions, mSearchEffort);
+        }
+        mCollectors[SOURCE_OTHER].mWeight = OTHER_LANGUAGE_WEIGHT;
     }
     
     public int getCorrectionMode() {
@@ -85,20 +149,124 @@ public class Suggest implements Dictionary.WordCallback {
     public void setCorrectionMode(int mode) {
         mCorrectionMode = mode;
     }
+
+    public int getSearchEffort() {
+        return mSearchEffort;
+    }
+
+    /**
+     * Sets how much work may go into the suggestions for a keystroke, one of
+     * {@link #EFFORT_SAVER}, {@link #EFFORT_BALANCED} and {@link #EFFORT_THOROUGH}.
+     * Each dictionary stops searching when it has spent that much, which bounds the
+     * latency of {@link #getSuggestions}.
+     */
+    public void setSearchEffort(int effort) {
+        if (effort < EFFORT_SAVER || effort > EFFORT_THOROUGH) {
+            effort = EFFORT_BALANCED;
+        }
+        if (effort != mSearchEffort) {
+            mSearchEffort = effort;
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                mCollectors[i] = new Collector(mPrefMaxSuggestions, effort);
+            }
+            mCollectors[SOURCE_OTHER].mWeight = OTHER_LANGUAGE_WEIGHT;
+        }
+    }
+    
+    /**
+     * Sets whether Latin input should be decoded as transliterated Greek
+     * ("greeklish"), instead of being looked up in the English dictionary.
+     */
+    public void setTransliteration(boolean transliterate) {
+        mTransliterate = transliterate;
+        setDictionaryLanguage(mLanguage);
+    }
     
+    public boolean isTransliterating() {
+        return mActiveDict != null && mActiveDict == mGreeklishDecoder;
+    }
+
+    /**
+     * Sets whether words of the other language are suggested too, so that
+     * the keyboard need not be switched for a word or two of it.
+     */
+    public void setBilingual(boolean bilingual) {
+        if (bilingual != mBilingual) {
+            mBilingual = bilingual;
+            setDictionaryLanguage(mLanguage);
+        }
+    }
+
+    public boolean isBilingual() {
+        return mBilingual;
+    }
+
+    /**
+     * Sets the language of the keyboard typed on.  Only the dictionaries searched
+     * in that language are loaded, and the others may be unloaded.
+     */
     public void setDictionaryLanguage (int language) {
-        switch (language) {
-        case KeyboardSwitcher.LANGUAGE_EL:
-            mActiveDict = mGreekDict;
-            break;
-        case KeyboardSwitcher.LANGUAGE_EN:
-            mActiveDict = mEnglishDict != null ? mEnglishDict : mGreekDict;
-            break;
-        default:
+        if (language < 0 || language >= LanguagePack.PACKS.length) {
             Log.e(TAG, "Invalid language, reverting to greek dictionary");
-            mActiveDict = mGreekDict; 
-            break;
+            language = KeyboardSwitcher.LANGUAGE_EL;
+        }
+        mLanguage = language;
+        // Greeklish is typed with Latin letters, as English is
+        final boolean transliterate = language == KeyboardSwitcher.LANGUAGE_EN && mTransliterate;
+        int main = transliterate ? KeyboardSwitcher.LANGUAGE_EL : language;
+        Dictionary mainDict = mPacks.getDictionary(main);
+        if (mainDict == null && !mPacks.isLoading(main)) {
+            main = KeyboardSwitcher.LANGUAGE_EL;
+            mainDict = mPacks.getDictionary(main);
+        }
+        int inUse = 1 << main;
+        if (mainDict == null) {
+            // Nothing is suggested until it has loaded
+            mActiveDict = null;
+        } else if (transliterate) {
+            if (mDecodedDict != mainDict) {
+                mGreeklishDecoder = new GreeklishDecoder(mainDict);
+                mDecodedDict = mainDict;
+            }
+            mActiveDict = mGreeklishDecoder;
+        } else {
+            mActiveDict = mainDict;
+        }
+
+        // In bilingual mode, the other of English and Greek is searched too
+        mOtherDict = null;
+        final int other = main == KeyboardSwitcher.LANGUAGE_EL 
+                ? KeyboardSwitcher.LANGUAGE_EN : KeyboardSwitcher.LANGUAGE_EL;
+        if (mBilingual && (transliterate || main == language)) {
+            inUse |= 1 << other;
+            Dictionary otherDict = mPacks.getDictionary(other);
+            if (otherDict == null || otherDict == mainDict) {
+                // Not available, or still loading
+            } else if (transliterate) {
+                mOtherDict = otherDict;
+            } else {
+                if (mKeyMappedBase != otherDict) {
+                    mKeyMappedDict = new KeyMappedDictionary(otherDict, language);
+                    mKeyMappedBase = otherDict;
+                }
+                mOtherDict = mKeyMappedDict;
+            }
+        }
+        mPacks.setInUse(inUse);
+        mLoading = mPacks.isLoading();
+    }
+
+    /**
+     * Whether the dictionary of the language is loaded, so that there are suggestions.
+     * Dictionaries load in the background, and until then only the typed word is
+     * suggested.
+     */
+    public boolean isReady() {
+        if (mLoading) {
+            // Pick up the dictionaries that have loaded since
+            setDictionaryLanguage(mLanguage);
         }
+        return mActiveDict != null;
     }
 
     /**
@@ -109,6 +277,14 @@ public class Suggest implements Dictionary.WordCallback {
         mUserDictionary = userDictionary;
     }
 
+    /**
+     * Sets an optional store of the user's word pairs. If set, words that the user
+     * has often typed after the previous word are ranked higher.
+     */
+    public void setNgramStore(UserNgramStore ngramStore) {
+        mNgramStore = ngramStore;
+    }
+
     /**
      * Number of suggestions to generate from the input key sequence. This has
      * to be a number between 1 and 100 (inclusive).
@@ -120,7 +296,10 @@ public class Suggest implements Dictionary.WordCallback {
             throw new IllegalArgumentException("maxSuggestions must be between 1 and 100");
         }
         mPrefMaxSuggestions = maxSuggestions;
-        mPriorities = new int[mPrefMaxSuggestions];
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mCollectors[i] = new Collector(maxSuggestions, mSearchEffort);
+        }
+        mCollectors[SOURCE_OTHER].mWeight = OTHER_LANGUAGE_WEIGHT;
         collectGarbage();
         while (mStringPool.size() < mPrefMaxSuggestions) {
             StringBuilder sb = new StringBuilder(32);
@@ -158,8 +337,9 @@ public class Suggest implements Dictionary.WordCallback {
             boolean includeTypedWordIfValid) {
         mHaveCorrection = false;
         collectGarbage();
-        Arrays.fill(mPriorities, 0);
         mIncludeTypedWordIfValid = includeTypedWordIfValid;
+        mNgramContextId = mNgramStore != null 
+                ? mNgramStore.getContextId() : UserNgramStore.NO_CONTEXT;
         
         // Save a lowercase version of the original word
         mOriginalWord = wordComposer.getTypedWord();
@@ -169,25 +349,44 @@ public class Suggest implements Dictionary.WordCallback {
         } else {
             mLowerOriginalWord = "";
         }
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mCollectors[i].clear();
+        }
         // Search the dictionary only if there are at least 2 characters
-        if (wordComposer.size() > 1) {
-            if (mUserDictionary != null) {
-                mUserDictionary.getWords(wordComposer, this);
-                if (mSuggestions.size() > 0 && isValidWord(mOriginalWord)) {
-                    mHaveCorrection = true;
-                }
+        if (wordComposer.size() > 1 && isReady()) {
+            collectWords(wordComposer);
+            if (mCollectors[SOURCE_USER].mCount > 0 && isValidWord(mOriginalWord)) {
+                mHaveCorrection = true;
+            }
+            mergeWords();
+            if (mCorrectionMode > CORRECTION_NONE && !isTransliterating()
+                    && !isValidWord(mOriginalWord) && promoteAccentVariant()) {
+                // Only the accents were left out or misplaced
+                mHaveCorrection = true;
             }
-            mActiveDict.getWords(wordComposer, this);
             if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 0) {
                 mHaveCorrection = true;
             }
+            if (isTransliterating() && mSuggestions.size() > 0) {
+                // The typed word is Latin; a Greek suggestion is always a correction
+                mHaveCorrection = true;
+            }
+            if (mSuggestions.size() == 0 && wordComposer.size() >= MIN_SEGMENTATION_LENGTH
+                    && !mCollectors[SOURCE_MAIN].mBudget.isExhausted()) {
+                // Nothing matched; perhaps a space was missed
+                CharSequence segmented = getSegmentation(mOriginalWord);
+                if (segmented != null) {
+                    mSuggestions.add(segmented);
+                }
+            }
         }
         if (mOriginalWord != null) {
             mSuggestions.add(0, mOriginalWord.toString());
         }
         
         // Check if the first suggestion has a minimum number of characters in common
-        if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 1) {
+        if (mCorrectionMode == CORRECTION_FULL && mSuggestions.size() > 1
+                && !isTransliterating()) {
             if (!haveSufficientCommonality(mLowerOriginalWord, mSuggestions.get(1))) {
                 mHaveCorrection = false;
             }
@@ -220,10 +419,222 @@ public class Suggest implements Dictionary.WordCallback {
         return mSuggestions;
     }
 
+    /**
+     * Searches each source into its collector, all at the same time, so that the
+     * wait is for the slowest source rather than for all of them in turn.
+     */
+    private void collectWords(WordComposer wordComposer) {
+        mCollectors[SOURCE_USER].mDictionary = mUserDictionary;
+        mCollectors[SOURCE_MAIN].mDictionary = mActiveDict;
+        mCollectors[SOURCE_OTHER].mDictionary = mBilingual ? mOtherDict : null;
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mCollectors[i].mComposer = wordComposer;
+        }
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            if (i != SOURCE_MAIN && mCollectors[i].mDictionary != null) {
+                mFutures[i] = mExecutor.submit(mCollectors[i]);
+            }
+        }
+        mCollectors[SOURCE_MAIN].run();
+        try {
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                if (mFutures[i] != null) {
+                    mFutures[i].get();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+            Log.e(TAG, "Dictionary search failed", ee.getCause());
+        } finally {
+            Arrays.fill(mFutures, null);
+        }
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mCollectors[i].mComposer = null;
+        }
+    }
+
+    /**
+     * Merges the words of the collectors, each already ranked, into the suggestions.
+     * Of words that differ only in case or accents, the best ranked one is kept.
+     */
+    private void mergeWords() {
+        final Collector[] collectors = mCollectors;
+        final int[] next = mMergeNext;
+        Arrays.fill(next, 0);
+        while (mSuggestions.size() < mPrefMaxSuggestions) {
+            int best = -1;
+            for (int i = 0; i < SOURCE_COUNT; i++) {
+                if (next[i] < collectors[i].mCount && (best < 0
+                        || collectors[i].ranksBefore(next[i], collectors[best], next[best]))) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            final CharSequence word = collectors[best].mWords[next[best]++];
+            if (hasVariant(word)) {
+                continue;
+            }
+            int poolSize = mStringPool.size();
+            StringBuilder sb = poolSize > 0 
+                    ? (StringBuilder) mStringPool.remove(poolSize - 1) : new StringBuilder(32);
+            sb.setLength(0);
+            sb.append(word);
+            mSuggestions.add(sb);
+        }
+    }
+
+    private boolean hasVariant(CharSequence word) {
+        final int length = word.length();
+        for (int i = mSuggestions.size() - 1; i >= 0; i--) {
+            final CharSequence other = mSuggestions.get(i);
+            if (other.length() != length) {
+                continue;
+            }
+            int k = 0;
+            while (k < length && UserDictionary.toLowerCase(word.charAt(k))
+                    == UserDictionary.toLowerCase(other.charAt(k))) {
+                k++;
+            }
+            if (k == length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the suggestion that differs from the typed word only in its accents
+     * to the front.  The frequency index rules out most typed words in constant
+     * time, before the suggestions are scanned.
+     * @return whether there was such a suggestion
+     */
+    private boolean promoteAccentVariant() {
+        if (mActiveDict == null || mActiveDict.getFrequency(mOriginalWord) == 0) {
+            return false;
+        }
+        for (int i = 0; i < mSuggestions.size(); i++) {
+            final CharSequence suggestion = mSuggestions.get(i);
+            if (isAccentVariant(suggestion, mLowerOriginalWord)) {
+                mSuggestions.add(0, mSuggestions.remove(i));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether a word folds to the same letters as a lowercase word, but is not
+     * the same word apart from case.
+     */
+    private static boolean isAccentVariant(CharSequence word, CharSequence lowerWord) {
+        final int length = word.length();
+        if (lowerWord.length() != length) {
+            return false;
+        }
+        boolean differs = false;
+        for (int i = 0; i < length; i++) {
+            final char c = word.charAt(i);
+            final char lower = lowerWord.charAt(i);
+            if (WordHash.fold(c) != WordHash.fold(lower)) {
+                return false;
+            }
+            differs |= Character.toLowerCase(c) != lower;
+        }
+        return differs;
+    }
+
+    /**
+     * Splits a typed word into dictionary words, e.g. when the user missed the space bar.
+     * This is a Viterbi search over the positions in the word: the best split of each
+     * prefix is extended by every dictionary word starting right after it, scoring words by
+     * their unigram frequency. All words starting at a position are found with a single
+     * walk down the dictionary trie, so the work is one walk per position.
+     * @return the words separated by spaces, or null if there is no split into two or
+     * more words
+     */
+    private CharSequence getSegmentation(CharSequence typed) {
+        final int length = typed.length();
+        if (length > MAX_SEGMENTATION_LENGTH) {
+            return null;
+        }
+        final char[] input = mSegmentInput;
+        for (int i = 0; i < length; i++) {
+            input[i] = typed.charAt(i);
+        }
+        final double[] scores = mSegmentScores;
+        final int[] starts = mSegmentStarts;
+        final int[] freqs = mSegmentFreqs;
+        final char[] chars = mSegmentChars;
+        final char[] words = mSegmentWords;
+        Arrays.fill(scores, 0, length + 1, Double.NEGATIVE_INFINITY);
+        scores[0] = 0;
+        for (int i = 0; i < length; i++) {
+            if (scores[i] == Double.NEGATIVE_INFINITY) continue;
+            final int remaining = length - i;
+            if (!mActiveDict.getPrefixFrequencies(input, i, remaining, freqs, chars)) {
+                return null;
+            }
+            for (int k = 0; k < remaining; k++) {
+                if (freqs[k] <= 0) continue;
+                final int end = i + k + 1;
+                final double score = scores[i] + Math.log(freqs[k] / 256.0) 
+                        + (i > 0 ? SEGMENT_PENALTY : 0);
+                if (score > scores[end]) {
+                    scores[end] = score;
+                    starts[end] = i;
+                    // Keep the dictionary spelling, which may have accents
+                    System.arraycopy(chars, k * remaining, 
+                            words, end * MAX_SEGMENTATION_LENGTH, k + 1);
+                }
+            }
+        }
+        if (scores[length] == Double.NEGATIVE_INFINITY || starts[length] == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(length + 4);
+        int end = length;
+        while (end > 0) {
+            final int start = starts[end];
+            sb.insert(0, words, end * MAX_SEGMENTATION_LENGTH, end - start);
+            if (start > 0) sb.insert(0, ' ');
+            end = start;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Unloads the dictionaries not in use, e.g. when the system is low on memory.
+     */
+    public void trimMemory() {
+        mPacks.trimToSize(0);
+    }
+
+    /**
+     * Releases the search threads and the dictionaries.
+     */
+    public synchronized void close() {
+        mExecutor.shutdown();
+        mPacks.close();
+    }
+
     public boolean hasMinimalCorrection() {
         return mHaveCorrection;
     }
 
+    /**
+     * Whether the last suggestions are partial: the search budget ran out before
+     * the dictionaries were searched in full, so better words may have been missed.
+     */
+    public boolean isPartial() {
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            if (mCollectors[i].mBudget.isExhausted()) return true;
+        }
+        return false;
+    }
+
     private boolean compareCaseInsensitive(final String mLowerOriginalWord, 
             final char[] word, final int offset, final int length) {
         final int originalLength = mLowerOriginalWord.length();
@@ -238,52 +649,98 @@ public class Suggest implements Dictionary.WordCallback {
         return false;
     }
 
-    public boolean addWord(final char[] word, final int offset, final int length, final int freq) {
-        int pos = 0;
-        final int[] priorities = mPriorities;
-        final int prefMaxSuggestions = mPrefMaxSuggestions;
-        // Check if it's the same word, only caps are different
-        if (compareCaseInsensitive(mLowerOriginalWord, word, offset, length)) {
-            pos = 0;
-        } else {
-            // Check the last one's priority and bail
-            if (priorities[prefMaxSuggestions - 1] >= freq) return true;
-            while (pos < prefMaxSuggestions) {
-                if (priorities[pos] < freq
-                        || (priorities[pos] == freq && length < mSuggestions
-                                .get(pos).length())) {
-                    break;
-                }
-                pos++;
+    /**
+     * The best words of one source for a keystroke, ranked as they are shown: a
+     * word that differs from the typed one only in case first, then by frequency,
+     * shorter words first, and earlier found words first.  Each source searches with
+     * its own budget, which is started when the collector is cleared, and its
+     * frequencies may be weighted against those of other sources.
+     */
+    private class Collector implements Dictionary.WordCallback, Runnable {
+        Dictionary mDictionary;
+        WordComposer mComposer;
+        final SearchBudget mBudget;
+        final int[] mPriorities;
+        final boolean[] mTypedCase;
+        final StringBuilder[] mWords;
+        int mCount;
+        /** Percent of their frequency that words keep */
+        int mWeight = 100;
+
+        Collector(int maxWords, int effort) {
+            mBudget = new SearchBudget(EFFORT_NODES[effort], EFFORT_MICROS[effort]);
+            mPriorities = new int[maxWords];
+            mTypedCase = new boolean[maxWords];
+            mWords = new StringBuilder[maxWords];
+            for (int i = 0; i < maxWords; i++) {
+                mWords[i] = new StringBuilder(32);
             }
         }
-        
-        if (pos >= prefMaxSuggestions) {
-            return true;
+
+        void clear() {
+            mCount = 0;
+            mBudget.start();
         }
-        System.arraycopy(priorities, pos, priorities, pos + 1,
-                prefMaxSuggestions - pos - 1);
-        priorities[pos] = freq;
-        int poolSize = mStringPool.size();
-        StringBuilder sb = poolSize > 0 ? (StringBuilder) mStringPool.remove(poolSize - 1) 
-                : new StringBuilder(32);
-        sb.setLength(0);
-        sb.append(word, offset, length);
-        mSuggestions.add(pos, sb);
-        if (mSuggestions.size() > prefMaxSuggestions) {
-            CharSequence garbage = mSuggestions.remove(prefMaxSuggestions);
-            if (garbage instanceof StringBuilder) {
-                mStringPool.add(garbage);
+
+        public void run() {
+            if (mDictionary != null) {
+                mDictionary.getWords(mComposer, this, mBudget);
             }
         }
-        return true;
+
+        boolean ranksBefore(int i, Collector other, int j) {
+            return ranksBefore(mTypedCase[i], mPriorities[i], mWords[i].length(),
+                    other.mTypedCase[j], other.mPriorities[j], other.mWords[j].length());
+        }
+
+        private boolean ranksBefore(boolean typedCase, int freq, int length,
+                boolean otherTypedCase, int otherFreq, int otherLength) {
+            if (typedCase != otherTypedCase) return typedCase;
+            if (freq != otherFreq) return freq > otherFreq;
+            return length < otherLength;
+        }
+
+        public boolean addWord(final char[] word, final int offset, final int length, int freq) {
+            if (mNgramStore != null) {
+                freq = mNgramStore.boostFrequency(mNgramContextId, word, offset, length, freq);
+            }
+            if (mWeight != 100) {
+                freq = Math.max(1, freq * mWeight / 100);
+            }
+            // Check if it's the same word, only caps are different
+            final boolean typedCase = 
+                    compareCaseInsensitive(mLowerOriginalWord, word, offset, length);
+            final int maxWords = mPriorities.length;
+            int pos = mCount;
+            while (pos > 0 && ranksBefore(typedCase, freq, length, 
+                    mTypedCase[pos - 1], mPriorities[pos - 1], mWords[pos - 1].length())) {
+                pos--;
+            }
+            if (pos >= maxWords) {
+                return true;
+            }
+            // The builder of the last word is dropped, or a spare one
+            final int last = Math.min(mCount, maxWords - 1);
+            final StringBuilder sb = mWords[last];
+            System.arraycopy(mPriorities, pos, mPriorities, pos + 1, last - pos);
+            System.arraycopy(mTypedCase, pos, mTypedCase, pos + 1, last - pos);
+            System.arraycopy(mWords, pos, mWords, pos + 1, last - pos);
+            mPriorities[pos] = freq;
+            mTypedCase[pos] = typedCase;
+            sb.setLength(0);
+            sb.append(word, offset, length);
+            mWords[pos] = sb;
+            if (mCount < maxWords) mCount++;
+            return true;
+        }
     }
 
     public boolean isValidWord(final CharSequence word) {
         if (word == null || word.length() == 0) {
             return false;
         }
-        return (mCorrectionMode == CORRECTION_FULL && mActiveDict.isValidWord(word)) 
+        return (mCorrectionMode == CORRECTION_FULL && mActiveDict != null
+                    && mActiveDict.isValidWord(word)) 
                 || (mCorrectionMode > CORRECTION_NONE && 
                     (mUserDictionary != null && mUserDictionary.isValidWord(word)));
     }
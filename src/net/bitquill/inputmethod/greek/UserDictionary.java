@@ -45,9 +45,11 @@ public class UserDictionary extends Dictionary {
     private int mMaxDepth;
     private int mInputLength;
 
-    public static final int MAX_WORD_LENGTH = 32;
+    public static final int MAX_WORD_LENGTH = BinaryDictionary.MAX_WORD_LENGTH;
 
     private char[] mWordBuilder = new char[MAX_WORD_LENGTH];
+    /** Search stack, one frame per letter of the word being composed */
+    private Frame[] mFrames = new Frame[MAX_WORD_LENGTH];
    
     private ContentObserver mObserver;
     
@@ -57,11 +59,28 @@ public class UserDictionary extends Dictionary {
         boolean terminal;
         List<Node> children;
     }
+
+    /**
+     * The nodes being walked at one depth of {@link #getWordsIter}, and the search
+     * state at them.
+     */
+    private static class Frame {
+        List<Node> nodes;
+        int next;
+        int depth;
+        boolean completion;
+        float snr;
+        int inputIndex;
+        int[] currentChars;
+    }
     
     private boolean mRequiresReload;
     
     public UserDictionary(Context context) {
         mContext = context;
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = new Frame();
+        }
         // Perform a managed query. The Activity will handle closing and requerying the cursor
         // when needed.
         ContentResolver cres = context.getContentResolver();
@@ -101,49 +120,55 @@ public class UserDictionary extends Dictionary {
      */
     public synchronized void addWord(String word, int frequency) {
         if (mRequiresReload) loadDictionary();
-        // Safeguard against adding long words. Can cause stack overflow.
-        if (word.length() >= MAX_WORD_LENGTH) return;
-        addWordRec(mRoots, word, 0, frequency);
+        // Safeguard against adding words too long to be suggested
+        if (word.length() == 0 || word.length() >= MAX_WORD_LENGTH) return;
+        addWordIter(word, frequency);
         Words.addWord(mContext, word, frequency, Words.LOCALE_TYPE_CURRENT);
         // In case the above does a synchronous callback of the change observer
         mRequiresReload = false;
     }
 
     @Override
-    public synchronized void getWords(final WordComposer codes, final WordCallback callback) {
+    public void getWords(final WordComposer codes, final WordCallback callback) {
+        getWords(codes, callback, null);
+    }
+
+    @Override
+    public synchronized void getWords(final WordComposer codes, final WordCallback callback,
+            final SearchBudget budget) {
         if (mRequiresReload) loadDictionary();
         mInputLength = codes.size();
-        mMaxDepth = mInputLength * 3;
-        getWordsRec(mRoots, codes, mWordBuilder, 0, false, 1.0f, 0, callback);
+        mMaxDepth = Math.min(mInputLength * 3, MAX_WORD_LENGTH - 1);
+        getWordsIter(codes, mWordBuilder, callback, budget);
     }
 
     @Override
     public synchronized boolean isValidWord(CharSequence word) {
         if (mRequiresReload) loadDictionary();
-        return isValidWordRec(mRoots, word, 0, word.length());
+        final int length = word.length();
+        List<Node> children = mRoots;
+        for (int offset = 0; offset < length && children != null; offset++) {
+            final Node node = findChild(children, word.charAt(offset));
+            if (node == null) {
+                return false;
+            }
+            if (offset == length - 1) {
+                return node.terminal;
+            }
+            children = node.children;
+        }
+        return false;
     }
-    
-    private boolean isValidWordRec(final List<Node> children, final CharSequence word, 
-            final int offset, final int length) {
+
+    private static Node findChild(final List<Node> children, final char c) {
         final int count = children.size();
-        char currentChar = word.charAt(offset);
-        for (int j = 0; j < count; j++) {
-            final Node node = children.get(j);
-            if (node.code == currentChar) {
-                if (offset == length - 1) {
-                    if (node.terminal) {
-                        return true;
-                    }
-                } else {
-                    if (node.children != null) {
-                        if (isValidWordRec(node.children, word, offset + 1, length)) {
-                            return true;
-                        }
-                    }
-                }
+        for (int i = 0; i < count; i++) {
+            final Node node = children.get(i);
+            if (node.code == c) {
+                return node;
             }
         }
-        return false;
+        return null;
     }
 
     static char toLowerCase(char c) {
@@ -155,64 +180,67 @@ public class UserDictionary extends Dictionary {
     }
 
     /**
-     * Recursively traverse the tree for words that match the input. Input consists of
-     * a list of arrays. Each item in the list is one input character position. An input
-     * character is actually an array of multiple possible candidates. This function is not
-     * optimized for speed, assuming that the user dictionary will only be a few hundred words in
-     * size.
-     * @param roots node whose children have to be search for matches
+     * Traverses the tree depth first for words that match the input, with an explicit
+     * stack of frames rather than recursion. Input consists of a list of arrays. Each item
+     * in the list is one input character position. An input character is actually an array
+     * of multiple possible candidates; a letter that matches more than one takes the first
+     * (heaviest) one. This function is not optimized for speed, assuming that the user
+     * dictionary will only be a few hundred words in size.
+     * <p>
+     * Each frame holds the search state at one depth: whether the traversal is in
+     * completion mode - meaning that we've exhausted the input and we're looking for all
+     * possible suffixes - the current weight of the word being formed, and the position in
+     * the input characters. This can be off from the depth in case we skip over some
+     * punctuations such as apostrophe in the traversal. That is, if you type "wouldve", it
+     * could be matching "would've", so the depth will be one more than the inputIndex.
      * @param codes the input character codes
      * @param word the word being composed as a possible match
-     * @param depth the depth of traversal - the length of the word being composed thus far
-     * @param completion whether the traversal is now in completion mode - meaning that we've
-     * exhausted the input and we're looking for all possible suffixes.
-     * @param snr current weight of the word being formed
-     * @param inputIndex position in the input characters. This can be off from the depth in 
-     * case we skip over some punctuations such as apostrophe in the traversal. That is, if you type
-     * "wouldve", it could be matching "would've", so the depth will be one more than the
-     * inputIndex
      * @param callback the callback class for adding a word
+     * @param budget the budget to spend a node from for each node visited, or null
      */
-    private void getWordsRec(List<Node> roots, final WordComposer codes, final char[] word, 
-            final int depth, boolean completion, float snr, int inputIndex,
-            WordCallback callback) {
-        final int count = roots.size();
-        final int codeSize = mInputLength;
-        // Optimization: Prune out words that are too long compared to how much was typed.
-        if (depth > mMaxDepth) {
-            return;
-        }
-        int[] currentChars = null;
-        if (codeSize <= inputIndex) {
-            completion = true;
-        } else {
-            currentChars = codes.getCodesAt(inputIndex);
-        }
-
-        for (int i = 0; i < count; i++) {
-            final Node node = roots.get(i); 
+    private void getWordsIter(final WordComposer codes, final char[] word,
+            final WordCallback callback, final SearchBudget budget) {
+        int top = 0;
+        pushFrame(top++, mRoots, codes, 0, false, 1.0f, 0);
+        while (top > 0) {
+            final Frame frame = mFrames[top - 1];
+            if (frame.next == frame.nodes.size()) {
+                top--;
+                continue;
+            }
+            if (budget != null && !budget.spend()) {
+                return;
+            }
+            final Node node = frame.nodes.get(frame.next++);
+            final int depth = frame.depth;
+            final float snr = frame.snr;
+            final int inputIndex = frame.inputIndex;
+            final int[] currentChars = frame.currentChars;
             final char c = node.code;
             final char lowerC = toLowerCase(c);
             boolean terminal = node.terminal;
             List<Node> children = node.children;
             int freq = node.frequency;
-            if (completion) {
+            // Optimization: Prune out words that are too long compared to how much was typed.
+            if (depth >= mMaxDepth) {
+                children = null;
+            }
+            if (frame.completion) {
                 word[depth] = c;
                 if (terminal) {
                     if (!callback.addWord(word, 0, depth + 1, (int) (freq * snr))) {
-                        return;
+                        top--;
+                        continue;
                     }
                 }
                 if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex, 
-                            callback);
+                    pushFrame(top++, children, codes, depth + 1, true, snr, inputIndex);
                 }
             } else if (c == QUOTE && currentChars[0] != QUOTE) {
                 // Skip the ' and continue deeper
                 word[depth] = QUOTE;
                 if (children != null) {
-                    getWordsRec(children, codes, word, depth + 1, completion, snr, inputIndex, 
-                            callback);
+                    pushFrame(top++, children, codes, depth + 1, false, snr, inputIndex);
                 }
             } else {
                 for (int j = 0; j < currentChars.length; j++) {
@@ -233,19 +261,37 @@ public class UserDictionary extends Dictionary {
                                 }
                             }
                             if (children != null) {
-                                getWordsRec(children, codes, word, depth + 1, 
-                                        true, snr * addedAttenuation, inputIndex + 1, callback);
+                                pushFrame(top++, children, codes, depth + 1,
+                                        true, snr * addedAttenuation, inputIndex + 1);
                             }
                         } else if (children != null) {
-                            getWordsRec(children, codes, word, depth + 1, 
-                                    false, snr * addedAttenuation, inputIndex + 1, callback);
+                            pushFrame(top++, children, codes, depth + 1,
+                                    false, snr * addedAttenuation, inputIndex + 1);
                         }
+                        break;
                     }
                 }
             }
         }
     }
 
+    private void pushFrame(int index, List<Node> nodes, WordComposer codes, int depth,
+            boolean completion, float snr, int inputIndex) {
+        final Frame frame = mFrames[index];
+        frame.nodes = nodes;
+        frame.next = 0;
+        frame.depth = depth;
+        frame.snr = snr;
+        frame.inputIndex = inputIndex;
+        if (mInputLength <= inputIndex) {
+            frame.completion = true;
+            frame.currentChars = null;
+        } else {
+            frame.completion = completion;
+            frame.currentChars = codes.getCodesAt(inputIndex);
+        }
+    }
+
     private void addWords(Cursor cursor) {
         mRoots = new ArrayList<Node>();
         
@@ -253,10 +299,9 @@ public class UserDictionary extends Dictionary {
             while (!cursor.isAfterLast()) {
                 String word = cursor.getString(INDEX_WORD);
                 int frequency = cursor.getInt(INDEX_FREQUENCY);
-                // Safeguard against adding really long words. Stack may overflow due
-                // to recursion
-                if (word.length() < MAX_WORD_LENGTH) {
-                    addWordRec(mRoots, word, 0, frequency);
+                // Safeguard against adding words too long to be suggested
+                if (word.length() > 0 && word.length() < MAX_WORD_LENGTH) {
+                    addWordIter(word, frequency);
                 }
                 cursor.moveToNext();
             }
@@ -264,37 +309,29 @@ public class UserDictionary extends Dictionary {
         cursor.close();
     }
     
-    private void addWordRec(List<Node> children, final String word, 
-            final int depth, final int frequency) {
-        
+    private void addWordIter(final String word, final int frequency) {
         final int wordLength = word.length();
-        final char c = word.charAt(depth);
-        // Does children have the current character?
-        final int childrenLength = children.size();
-        Node childNode = null;
-        boolean found = false;
-        for (int i = 0; i < childrenLength; i++) {
-            childNode = children.get(i);
-            if (childNode.code == c) {
-                found = true;
-                break;
+        List<Node> children = mRoots;
+        for (int depth = 0; ; depth++) {
+            final char c = word.charAt(depth);
+            // Does children have the current character?
+            Node childNode = findChild(children, c);
+            if (childNode == null) {
+                childNode = new Node();
+                childNode.code = c;
+                children.add(childNode);
             }
+            if (wordLength == depth + 1) {
+                // Terminate this word
+                childNode.terminal = true;
+                childNode.frequency += frequency; // If there are multiple similar words
+                return;
+            }
+            if (childNode.children == null) {
+                childNode.children = new ArrayList<Node>(); 
+            }
+            children = childNode.children;
         }
-        if (!found) {
-            childNode = new Node();
-            childNode.code = c;
-            children.add(childNode);
-        }
-        if (wordLength == depth + 1) {
-            // Terminate this word
-            childNode.terminal = true;
-            childNode.frequency += frequency; // If there are multiple similar words
-            return;
-        }
-        if (childNode.children == null) {
-            childNode.children = new ArrayList<Node>(); 
-        }
-        addWordRec(childNode.children, word, depth + 1, frequency);
     }
 
     /**
@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Learns the user's phrase habits from committed words. Counts of
+ * (previous word, word) pairs are kept in a fixed-size open addressing table,
+ * so memory use is bounded and each committed word costs O(1). Counts are
+ * halved periodically, so that old habits fade out.
+ *
+ * Every update is appended to a write-ahead log; once the log grows large
+ * enough, the table is written out as a fresh snapshot on a background thread
+ * and the old logs are dropped. Loading the table and logging updates are
+ * done in order on a background thread, so the caller never waits for the
+ * disk; until the table is loaded, frequencies are not boosted.
+ */
+public class UserNgramStore {
+    private static final String TAG = "UserNgramStore";
+
+    private static final String SNAPSHOT_FILE = "ngrams.dat";
+    private static final String LOG_PREFIX = "ngrams-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x4e475231;  // "NGR1"
+
+    /**
+     * Number of slots in the pair table (must be a power of two). This fixes
+     * the RAM budget, at 12 bytes per slot.
+     */
+    private static final int CAPACITY = 4096;
+    private static final int MAX_PROBES = 8;
+    private static final int MAX_COUNT = 255;
+
+    /** Halve all counts after this many committed words */
+    private static final int DECAY_INTERVAL = 2048;
+    /** Write a new snapshot once the log has this many records */
+    private static final int COMPACT_THRESHOLD = 1024;
+
+    /** Log record that stands for a decay pass, rather than a word pair */
+    private static final long DECAY_RECORD = 0;
+
+    /** Context id used at the start of a sentence, when there is no previous word */
+    static final int NO_CONTEXT = 0;
+
+    private Context mContext;
+
+    private long[] mKeys = new long[CAPACITY];
+    private int[] mCounts = new int[CAPACITY];
+    private int mSize;
+
+    private int mContextId = NO_CONTEXT;
+    private int mCommitsSinceDecay;
+
+    private int mGeneration;
+    private int mLogRecords;
+    private DataOutputStream mLog;
+    private volatile boolean mCompacting;
+    private volatile boolean mLoaded;
+    /** Loads the table, then applies the committed words in turn */
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor();
+
+    public UserNgramStore(Context context) {
+        mContext = context;
+        mWorker.execute(new Runnable() {
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Returns the id of a word, as used for the pair keys. Ids are case-insensitive
+     * and never equal to {@link #NO_CONTEXT}.
+     */
+    static int getWordId(final char[] word, final int offset, final int length) {
+        int h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + Character.toLowerCase(word[i]);
+        }
+        return h == NO_CONTEXT ? 1 : h;
+    }
+
+    static int getWordId(final CharSequence word) {
+        int h = 0;
+        final int length = word.length();
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + Character.toLowerCase(word.charAt(i));
+        }
+        return h == NO_CONTEXT ? 1 : h;
+    }
+
+    private static long makeKey(int prevId, int wordId) {
+        // Low half is never zero, so a zero key marks an empty slot
+        return ((long) prevId << 32) | (wordId & 0xFFFFFFFFL);
+    }
+
+    private static int slotOf(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 40) & (CAPACITY - 1);
+    }
+
+    /**
+     * Returns the id of the last committed word, or {@link #NO_CONTEXT}.
+     */
+    public int getContextId() {
+        return mContextId;
+    }
+
+    /**
+     * Forgets the previous word, e.g. at the end of a sentence or when the
+     * cursor moves to another field.
+     */
+    public void resetContext() {
+        mContextId = NO_CONTEXT;
+    }
+
+    /**
+     * Records a committed word, following the previous committed word. The
+     * table and the log are updated in the background, after loading.
+     */
+    public void commitWord(CharSequence word) {
+        if (word == null || word.length() == 0) {
+            return;
+        }
+        final int wordId = getWordId(word);
+        final long key = makeKey(mContextId, wordId);
+        mContextId = wordId;
+        try {
+            mWorker.execute(new Runnable() {
+                public void run() {
+                    record(key);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Closed
+        }
+    }
+
+    /**
+     * Applies a committed pair on the worker thread. The log is only used there,
+     * so it is written without holding up lookups.
+     */
+    private void record(long key) {
+        boolean decayed = false;
+        synchronized (this) {
+            increment(key);
+            if (++mCommitsSinceDecay >= DECAY_INTERVAL) {
+                decay();
+                decayed = true;
+            }
+        }
+        appendLog(key);
+        if (decayed) {
+            appendLog(DECAY_RECORD);
+        }
+        if (mLogRecords >= COMPACT_THRESHOLD && !mCompacting) {
+            compact();
+        }
+    }
+
+    /**
+     * Records the words of a committed phrase in turn, e.g. a suggestion that
+     * splits the typed letters into several words separated by spaces.
+     */
+    public void commitWords(CharSequence phrase) {
+        final int length = phrase.length();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || phrase.charAt(i) == ' ') {
+                if (i > start) {
+                    commitWord(phrase.subSequence(start, i));
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Returns how many times the word followed the given context word.
+     */
+    public synchronized int getCount(int contextId, final char[] word, final int offset,
+            final int length) {
+        final long key = makeKey(contextId, getWordId(word, offset, length));
+        int slot = slotOf(key);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            final long k = mKeys[slot];
+            if (k == key) {
+                return mCounts[slot];
+            } else if (k == 0) {
+                return 0;
+            }
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+        return 0;
+    }
+
+    /**
+     * Boosts a dictionary frequency according to how often the word followed
+     * the given context word.
+     */
+    public int boostFrequency(int contextId, final char[] word, final int offset,
+            final int length, final int freq) {
+        if (!mLoaded || (contextId == NO_CONTEXT && mSize == 0)) {
+            return freq;
+        }
+        final int count = Math.min(getCount(contextId, word, offset, length), 12);
+        return freq * (4 + count) / 4;
+    }
+
+    private void increment(long key) {
+        int slot = slotOf(key);
+        int victim = -1;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            final long k = mKeys[slot];
+            if (k == key) {
+                if (mCounts[slot] < MAX_COUNT) {
+                    mCounts[slot]++;
+                }
+                return;
+            } else if (k == 0) {
+                mKeys[slot] = key;
+                mCounts[slot] = 1;
+                mSize++;
+                return;
+            }
+            if (victim < 0 || mCounts[slot] < mCounts[victim]) {
+                victim = slot;
+            }
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+        // Probe window is full; only evict pairs that were seen just once
+        if (mCounts[victim] <= 1) {
+            mKeys[victim] = key;
+            mCounts[victim] = 1;
+        }
+    }
+
+    /**
+     * Halves all counts and drops the pairs that reach zero. The table is
+     * rebuilt, since removing keys in place would break the probe chains.
+     */
+    private void decay() {
+        final long[] keys = mKeys;
+        final int[] counts = mCounts;
+        mKeys = new long[CAPACITY];
+        mCounts = new int[CAPACITY];
+        mSize = 0;
+        for (int i = 0; i < CAPACITY; i++) {
+            final int count = counts[i] >> 1;
+            if (keys[i] != 0 && count > 0) {
+                insert(keys[i], count);
+            }
+        }
+        mCommitsSinceDecay = 0;
+    }
+
+    private void insert(long key, int count) {
+        int slot = slotOf(key);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            if (mKeys[slot] == 0) {
+                mKeys[slot] = key;
+                mCounts[slot] = count;
+                mSize++;
+                return;
+            }
+            slot = (slot + 1) & (CAPACITY - 1);
+        }
+    }
+
+    private void appendLog(long key) {
+        try {
+            if (mLog == null) {
+                mLog = new DataOutputStream(new FileOutputStream(getLogFile(mGeneration), true));
+            }
+            mLog.writeLong(key);
+            mLogRecords++;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not append to n-gram log", ioe);
+        }
+    }
+
+    private File getLogFile(int generation) {
+        return new File(mContext.getFilesDir(), LOG_PREFIX + generation + LOG_SUFFIX);
+    }
+
+    /**
+     * Starts a new log generation and writes a snapshot of the table on a
+     * background thread. The snapshot covers all logs before the new generation,
+     * which are deleted once it is safely in place.
+     */
+    private void compact() {
+        closeLog();
+        final int generation = ++mGeneration;
+        mLogRecords = 0;
+        final long[] keys;
+        final int[] counts;
+        final int commitsSinceDecay;
+        synchronized (this) {
+            keys = mKeys.clone();
+            counts = mCounts.clone();
+            commitsSinceDecay = mCommitsSinceDecay;
+        }
+        mCompacting = true;
+        Thread thread = new Thread("NgramCompaction") {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(generation, keys, counts, commitsSinceDecay);
+                    deleteLogsBefore(generation);
+                } catch (IOException ioe) {
+                    Log.e(TAG, "Could not write n-gram snapshot", ioe);
+                } finally {
+                    mCompacting = false;
+                }
+            }
+        };
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private void writeSnapshot(int generation, long[] keys, int[] counts, int commitsSinceDecay)
+            throws IOException {
+        File dir = mContext.getFilesDir();
+        File tmp = new File(dir, SNAPSHOT_FILE + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(generation);
+            out.writeInt(commitsSinceDecay);
+            int size = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) size++;
+            }
+            out.writeInt(size);
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != 0) {
+                    out.writeLong(keys[i]);
+                    out.writeByte(counts[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(dir, SNAPSHOT_FILE))) {
+            throw new IOException("Could not rename n-gram snapshot");
+        }
+    }
+
+    private void deleteLogsBefore(int generation) {
+        String[] names = mContext.getFilesDir().list();
+        if (names == null) return;
+        for (String name : names) {
+            int gen = parseLogGeneration(name);
+            if (gen >= 0 && gen < generation) {
+                getLogFile(gen).delete();
+            }
+        }
+    }
+
+    private static int parseLogGeneration(String name) {
+        if (!name.startsWith(LOG_PREFIX) || !name.endsWith(LOG_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(
+                    name.substring(LOG_PREFIX.length(), name.length() - LOG_SUFFIX.length()));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the last snapshot and replays the logs written since.
+     */
+    private synchronized void load() {
+        long startTime = System.currentTimeMillis();
+        File dir = mContext.getFilesDir();
+        int snapshotGeneration = 0;
+        File snapshot = new File(dir, SNAPSHOT_FILE);
+        if (snapshot.exists()) {
+            try {
+                snapshotGeneration = readSnapshot(snapshot);
+            } catch (IOException ioe) {
+                Log.e(TAG, "Could not read n-gram snapshot, starting over", ioe);
+                Arrays.fill(mKeys, 0);
+                Arrays.fill(mCounts, 0);
+                mSize = 0;
+            }
+        }
+
+        int lastGeneration = snapshotGeneration;
+        String[] names = dir.list();
+        if (names != null) {
+            int[] generations = new int[names.length];
+            int count = 0;
+            for (String name : names) {
+                int gen = parseLogGeneration(name);
+                if (gen >= snapshotGeneration) {
+                    generations[count++] = gen;
+                }
+            }
+            Arrays.sort(generations, 0, count);
+            for (int i = 0; i < count; i++) {
+                mLogRecords += replayLog(getLogFile(generations[i]));
+                lastGeneration = generations[i];
+            }
+        }
+        mGeneration = lastGeneration;
+        mLoaded = true;
+        Log.i(TAG, "Loaded " + mSize + " n-grams in "
+                + (System.currentTimeMillis() - startTime) + "msec");
+    }
+
+    private int readSnapshot(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Bad n-gram snapshot header");
+            }
+            int generation = in.readInt();
+            mCommitsSinceDecay = in.readInt();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                long key = in.readLong();
+                int count = in.readUnsignedByte();
+                insert(key, count);
+            }
+            return generation;
+        } finally {
+            in.close();
+        }
+    }
+
+    private int replayLog(File file) {
+        int records = 0;
+        boolean complete = false;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                long key = in.readLong();
+                if (key == DECAY_RECORD) {
+                    decay();
+                } else {
+                    increment(key);
+                    mCommitsSinceDecay++;
+                }
+                records++;
+            }
+        } catch (EOFException eof) {
+            // Done; a torn record at the end is simply dropped
+            complete = true;
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not replay n-gram log " + file, ioe);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ioe) { }
+            }
+        }
+        // Records appended after a torn one would be read out of alignment
+        final long length = records * 8L;
+        if (complete && file.length() > length) {
+            truncateLog(file, length);
+        }
+        return records;
+    }
+
+    private static void truncateLog(File file, long length) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(length);
+        } catch (IOException ioe) {
+            Log.e(TAG, "Could not truncate n-gram log " + file, ioe);
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ioe) { }
+            }
+        }
+    }
+
+    private void closeLog() {
+        if (mLog != null) {
+            try {
+                mLog.close();
+            } catch (IOException ioe) {
+                Log.e(TAG, "Could not close n-gram log", ioe);
+            }
+            mLog = null;
+        }
+    }
+
+    /**
+     * Closes the log once the words committed so far are in it.
+     */
+    public void close() {
+        try {
+            mWorker.execute(new Runnable() {
+                public void run() {
+                    closeLog();
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Already closed
+        }
+        mWorker.shutdown();
+    }
+}
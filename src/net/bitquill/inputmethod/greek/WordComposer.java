@@ -40,6 +40,12 @@ public class WordComposer {
      */
     private boolean mIsCapitalized;
 
+    /**
+     * Whether the codes are a reading of what was typed, rather than the keys
+     * themselves, so that the word they spell is a suggestion too.
+     */
+    private boolean mIsReading;
+
     WordComposer() {
         mCodes = new ArrayList<int[]>(12);
         mTypedWord = new StringBuilder(20);
@@ -122,6 +128,19 @@ public class WordComposer {
     public boolean isCapitalized() {
         return mIsCapitalized;
     }
+
+    public void setReading(boolean reading) {
+        mIsReading = reading;
+    }
+
+    /**
+     * Whether the primary codes are a reading of other keys, e.g. Greek letters
+     * decoded from greeklish; the word they spell was then not typed as such, and
+     * dictionaries suggest it rather than leave it out.
+     */
+    public boolean isReading() {
+        return mIsReading;
+    }
     
     /**
      * Stores the user's selected word, before it is actually committed to the text field.
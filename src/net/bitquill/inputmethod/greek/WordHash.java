@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2009 Spiros Papadimitriou <spapadim@cs.cmu.edu>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package net.bitquill.inputmethod.greek;
+
+/**
+ * Folding and hashing of words for the dictionary side files (see
+ * <code>dict/el/wordhash.py</code>, which must compute exactly the same values).
+ * Words are folded to lower case, without accents and without final sigma, so
+ * that every way of typing a word hashes the same.
+ */
+final class WordHash {
+    private static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    /** Folded letters for U+0386 to U+03CE; zero where the letter is unchanged */
+    private static final char[] GREEK_FOLD = new char[0x3CF - 0x386];
+
+    static {
+        final String from = "ΆΈΉΊΌΎΏΐΪΫάέήίΰςϊϋόύώ";
+        final String to   = "αεηιουωιιυαεηιυσιυουω";
+        for (int i = 0; i < from.length(); i++) {
+            GREEK_FOLD[from.charAt(i) - 0x386] = to.charAt(i);
+        }
+        for (char c = 'Α'; c <= 'Ω'; c++) {
+            GREEK_FOLD[c - 0x386] = (char) (c + 0x20);
+        }
+    }
+
+    private WordHash() {
+    }
+
+    static char fold(char c) {
+        if (c >= 'A' && c <= 'Z') {
+            return (char) (c + 0x20);
+        }
+        if (c >= 0x386 && c < 0x3CF) {
+            final char folded = GREEK_FOLD[c - 0x386];
+            return folded != 0 ? folded : c;
+        }
+        return c;
+    }
+
+    /**
+     * Returns the 32-bit FNV-1a hash of a folded word.
+     */
+    static int hash(CharSequence word) {
+        return hash(word, 0);
+    }
+
+    /**
+     * Returns the hash of a folded word; each seed gives a different hash function.
+     */
+    static int hash(CharSequence word, int seed) {
+        int h = FNV_OFFSET ^ seed;
+        final int length = word.length();
+        for (int i = 0; i < length; i++) {
+            h = (h ^ fold(word.charAt(i))) * FNV_PRIME;
+        }
+        return h;
+    }
+
+    /**
+     * Scrambles a hash (the Murmur3 finalizer), to derive a second one from it.
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}